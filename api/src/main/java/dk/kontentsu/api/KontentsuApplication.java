@@ -36,6 +36,7 @@ import dk.kontentsu.api.exceptionmappers.ContainerExceptionMapper;
 import dk.kontentsu.api.exceptionmappers.DefaultExceptionMapper;
 import dk.kontentsu.api.exceptionmappers.NoResultExceptionMapper;
 import dk.kontentsu.api.exceptionmappers.WebApplicationExceptionMapper;
+import dk.kontentsu.api.exposure.ExternalizationExposure;
 import dk.kontentsu.api.exposure.ExternalFileExposure;
 import dk.kontentsu.api.exposure.HostExposure;
 import dk.kontentsu.api.exposure.ItemExposure;
@@ -77,6 +78,7 @@ public class KontentsuApplication extends Application {
         classes.add(RootExposure.class);
         classes.add(TermExposure.class);
         classes.add(HostExposure.class);
+        classes.add(ExternalizationExposure.class);
 
         //Filters
         classes.add(CORSFilter.class);
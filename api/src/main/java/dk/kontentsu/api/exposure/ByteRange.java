@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.api.exposure;
+
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Range of bytes requested using the HTTP range header. Only a single range is supported - requests for multiple ranges
+ * are answered with the whole content, which is allowed by RFC 7233.
+ *
+ * @author Jens Borch Christiansen
+ */
+final class ByteRange {
+
+    private static final Pattern PATTERN = Pattern.compile("^bytes=(?<start>\\d*)-(?<end>\\d*)$");
+
+    private final long start;
+    private final long end;
+    private final long size;
+
+    private ByteRange(final long start, final long end, final long size) {
+        this.start = start;
+        this.end = end;
+        this.size = size;
+    }
+
+    /**
+     * Parse a range header.
+     *
+     * @param header the value of the range header
+     * @param size the size of the content in bytes
+     * @return the range requested, or empty if the header is invalid or requests multiple ranges
+     */
+    static Optional<ByteRange> parse(final String header, final long size) {
+        Matcher m = PATTERN.matcher(header.trim());
+        if (!m.matches() || m.group("start").isEmpty() && m.group("end").isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            if (m.group("start").isEmpty()) {
+                long suffix = Long.parseLong(m.group("end"));
+                return Optional.of(new ByteRange((suffix == 0) ? size : Math.max(0, size - suffix), size - 1, size));
+            }
+            long first = Long.parseLong(m.group("start"));
+            long last = m.group("end").isEmpty() ? Long.MAX_VALUE : Long.parseLong(m.group("end"));
+            if (last < first) {
+                return Optional.empty();
+            }
+            return Optional.of(new ByteRange(first, Math.min(last, size - 1), size));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @return true if the range overlaps the content
+     */
+    boolean isSatisfiable() {
+        return start < size;
+    }
+
+    /**
+     * @return value of the content range header to send with the range
+     */
+    String getContentRange() {
+        return isSatisfiable() ? "bytes " + start + "-" + end + "/" + size : "bytes */" + size;
+    }
+
+}
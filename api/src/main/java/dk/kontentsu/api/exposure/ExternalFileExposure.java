@@ -23,7 +23,18 @@
  */
 package dk.kontentsu.api.exposure;
 
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
 
 import javax.annotation.security.PermitAll;
 import javax.ejb.Stateless;
@@ -36,13 +47,20 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import dk.kontentsu.api.exposure.model.ErrorRepresentation;
+import dk.kontentsu.externalization.PublishedFiles;
+import dk.kontentsu.model.Content;
 import dk.kontentsu.model.ExternalFile;
-import dk.kontentsu.repository.ExternalFileRepository;
+import dk.kontentsu.repository.ExternalFileCache;
+import dk.kontentsu.repository.ItemRepository;
 import dk.kontentsu.util.DateTimeFormat;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -61,8 +79,21 @@ import io.swagger.annotations.ApiResponses;
 @Api(tags = {"files"})
 public class ExternalFileExposure {
 
+    private static final String GZIP = "gzip";
+    private static final String BYTES = "bytes";
+    private static final String RANGE = "Range";
+    private static final String IF_RANGE = "If-Range";
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    @Inject
+    private ExternalFileCache cache;
+
+    @Inject
+    private ItemRepository itemRepo;
+
     @Inject
-    private ExternalFileRepository repo;
+    private PublishedFiles publishedFiles;
 
     @GET
     @Path("/{uri:.*}")
@@ -71,8 +102,11 @@ public class ExternalFileExposure {
             notes = "The accept header must match the mime type of the content at the given URI")
     @ApiResponses(value = {
         @ApiResponse(code = 200, message = "The content uploaded to the CDN"),
+        @ApiResponse(code = 206, message = "The range of the content requested"),
+        @ApiResponse(code = 304, message = "The content has not been modified"),
         @ApiResponse(code = 404, message = "No content found at URI", response = ErrorRepresentation.class),
-        @ApiResponse(code = 406, message = "Accept header does not match resource mime type", response = ErrorRepresentation.class)})
+        @ApiResponse(code = 406, message = "Accept header does not match resource mime type", response = ErrorRepresentation.class),
+        @ApiResponse(code = 416, message = "The range requested is not satisfiable")})
     public Response get(
             @ApiParam(value = "URI to content on the CDN", required = true)
             @PathParam("uri") @NotNull @Size(min = 3)
@@ -80,26 +114,190 @@ public class ExternalFileExposure {
             @ApiParam(value = "Accept header defining the content type to retrieve", required = false)
             @HeaderParam(HttpHeaders.ACCEPT)
             final String acceptHeader,
+            @ApiParam(value = "Accept encoding header, content stored or published compressed is sent gzip encoded if accepted", required = false)
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING)
+            final String acceptEncodingHeader,
             @ApiParam(value = "Timestamp in UTC format defining at what point in time to get content from", required = false)
             @QueryParam("at")
             @DateTimeFormat(DateTimeFormat.Format.UTC)
-            final String at) {
+            final String at,
+            @ApiParam(value = "Range of bytes to get, only a single range is supported", required = false)
+            @HeaderParam(RANGE)
+            final String rangeHeader,
+            @ApiParam(value = "Only get the range if the content has the given entity tag or modification time", required = false)
+            @HeaderParam(IF_RANGE)
+            final String ifRangeHeader,
+            @Context
+            final Request request) {
         ZonedDateTime time = (at == null) ? null : ZonedDateTime.parse(at);
-        ExternalFile result = repo.getByUri(uri, time);
-        return getResponse(result, acceptHeader);
+        ExternalFile result = cache.getByUri(uri, time);
+        return getResponse(result, time == null, acceptHeader, acceptEncodingHeader, rangeHeader, ifRangeHeader, request);
     }
 
-    private Response getResponse(final ExternalFile file, final String acceptHeader) {
+    private Response getResponse(final ExternalFile file, final boolean current, final String acceptHeader,
+            final String acceptEncodingHeader, final String rangeHeader, final String ifRangeHeader, final Request request) {
         if (file.getMimeType().matchesHeader(acceptHeader)) {
-            Response.ResponseBuilder builder = Response
-                    .status(Response.Status.OK)
-                    .entity(file.getContent().getDataAsBinaryStream())
-                    .type(file.getMimeType().toMediaType());
-            file.getContent().getEncoding().ifPresent(e -> builder.encoding(e.toString()));
-            return builder.build();
+            Content content = file.getContent();
+            // Current files are served from the files and compressed copies published to the hosts, if possible
+            Optional<java.nio.file.Path> published = current ? publishedFiles.find(file) : Optional.empty();
+            Optional<java.nio.file.Path> precompressed = current ? publishedFiles.findCompressed(file) : Optional.empty();
+            boolean compressible = content.isCompressed() || precompressed.isPresent();
+            // Ranges are only served from the uncompressed data
+            boolean gzip = compressible && acceptsGzip(acceptEncodingHeader) && rangeHeader == null;
+            String hash = content.findHash().orElseGet(() -> itemRepo.getContentHash(content.getUuid()));
+            // The compressed and uncompressed data are different representations, so they must have different tags
+            EntityTag tag = new EntityTag(gzip ? hash + "-" + GZIP : hash);
+            Date modified = getLastModified(file);
+            Response.ResponseBuilder builder = request.evaluatePreconditions(modified, tag);
+            if (builder == null) {
+                Optional<ByteRange> range = (rangeHeader != null && matchesIfRange(ifRangeHeader, tag, modified))
+                        ? ByteRange.parse(rangeHeader, content.getSize())
+                        : Optional.empty();
+                if (range.isPresent()) {
+                    builder = getPartialResponse(file, published, range.get());
+                } else {
+                    builder = getOkResponse(file, gzip ? precompressed : published, gzip);
+                }
+            }
+            if (compressible) {
+                builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            }
+            return builder.header(ACCEPT_RANGES, BYTES).tag(tag).lastModified(modified).build();
         } else {
             throw new MimeTypeMismatchException("Accept header " + acceptHeader + " does not match resource mime type " + file.getMimeType());
         }
     }
 
+    private Response.ResponseBuilder getOkResponse(final ExternalFile file, final Optional<java.nio.file.Path> published, final boolean gzip) {
+        Content content = file.getContent();
+        Response.ResponseBuilder builder = Response
+                .status(Response.Status.OK)
+                .type(file.getMimeType().toMediaType());
+        if (gzip) {
+            builder.entity(getCompressedStreamingOutput(content, published)).encoding(GZIP);
+        } else {
+            builder.entity(getStreamingOutput(content, published));
+            content.getEncoding().ifPresent(e -> builder.encoding(e.toString()));
+        }
+        return builder;
+    }
+
+    private Response.ResponseBuilder getPartialResponse(final ExternalFile file, final Optional<java.nio.file.Path> published, final ByteRange range) {
+        if (!range.isSatisfiable()) {
+            return Response
+                    .status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(CONTENT_RANGE, range.getContentRange());
+        }
+        Content content = file.getContent();
+        Response.ResponseBuilder builder = Response
+                .status(Response.Status.PARTIAL_CONTENT)
+                .type(file.getMimeType().toMediaType())
+                .header(CONTENT_RANGE, range.getContentRange())
+                .header(HttpHeaders.CONTENT_LENGTH, range.getLength())
+                .entity(getStreamingOutput(content, published, range));
+        content.getEncoding().ifPresent(e -> builder.encoding(e.toString()));
+        return builder;
+    }
+
+    /**
+     * The range is only sent if the If-Range header is missing or matches the current content. Only strong entity tags
+     * match.
+     */
+    private static boolean matchesIfRange(final String ifRangeHeader, final EntityTag tag, final Date modified) {
+        if (ifRangeHeader == null) {
+            return true;
+        }
+        String value = ifRangeHeader.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value.equals(tag.toString());
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().equals(modified.toInstant());
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Files are available from the start of their interval, and may have been modified later. HTTP dates only have a
+     * precision of seconds.
+     */
+    private static Date getLastModified(final ExternalFile file) {
+        ZonedDateTime from = file.getInterval().getFrom();
+        ZonedDateTime modified = file.getModified().isAfter(from) ? file.getModified() : from;
+        return Date.from(modified.toInstant().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    private StreamingOutput getStreamingOutput(final Content content, final Optional<java.nio.file.Path> published) {
+        return out -> {
+            WritableByteChannel channel = Channels.newChannel(out);
+            if (!published.isPresent() || !transfer(published.get(), content.getSize(), channel, 0, Long.MAX_VALUE)) {
+                itemRepo.copyContent(content.getUuid(), channel);
+            }
+        };
+    }
+
+    private StreamingOutput getStreamingOutput(final Content content, final Optional<java.nio.file.Path> published, final ByteRange range) {
+        return out -> {
+            WritableByteChannel channel = Channels.newChannel(out);
+            if (!published.isPresent() || !transfer(published.get(), content.getSize(), channel, range.getStart(), range.getLength())) {
+                itemRepo.copyContent(content.getUuid(), channel, range.getStart(), range.getLength());
+            }
+        };
+    }
+
+    /**
+     * Transfer the published file directly to the response. The file may be replaced by a new publication at any time,
+     * so the content is read from the database if the file is gone or doesn't have the size of the content.
+     *
+     * @return false if nothing was transferred and the content must be read from the database
+     */
+    private static boolean transfer(final java.nio.file.Path path, final long size, final WritableByteChannel channel,
+            final long offset, final long length) throws IOException {
+        try (FileChannel in = FileChannel.open(path)) {
+            if (in.size() != size) {
+                return false;
+            }
+            transfer(in, channel, offset, Math.min(size, offset + Math.min(length, size)));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static boolean transfer(final java.nio.file.Path path, final WritableByteChannel channel) throws IOException {
+        try (FileChannel in = FileChannel.open(path)) {
+            transfer(in, channel, 0, in.size());
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static void transfer(final FileChannel in, final WritableByteChannel channel, final long start, final long end) throws IOException {
+        long position = start;
+        while (position < end) {
+            position += in.transferTo(position, end - position, channel);
+        }
+    }
+
+    private StreamingOutput getCompressedStreamingOutput(final Content content, final Optional<java.nio.file.Path> precompressed) {
+        return out -> {
+            WritableByteChannel channel = Channels.newChannel(out);
+            if (!precompressed.isPresent() || !transfer(precompressed.get(), channel)) {
+                itemRepo.copyCompressedContent(content.getUuid(), channel);
+            }
+        };
+    }
+
+    private static boolean acceptsGzip(final String acceptEncodingHeader) {
+        if (acceptEncodingHeader == null) {
+            return false;
+        }
+        return Arrays.stream(acceptEncodingHeader.split(","))
+                .map(e -> e.trim().split(";"))
+                .filter(e -> GZIP.equalsIgnoreCase(e[0].trim()) || "*".equals(e[0].trim()))
+                .anyMatch(e -> e.length == 1 || !e[1].trim().matches("q=0(\\.0*)?"));
+    }
+
 }
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.api.exposure;
+
+import javax.annotation.security.DeclareRoles;
+import javax.annotation.security.RolesAllowed;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import dk.kontentsu.api.exposure.model.ExternalizationJobsRepresentation;
+import dk.kontentsu.externalization.ExternalizationJobService;
+import dk.kontentsu.externalization.ExternalizerService;
+import dk.kontentsu.model.Role;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+/**
+ * REST resource for monitoring externalization of uploaded content.
+ *
+ * @author Jens Borch Christiansen
+ */
+@Path("/externalization")
+@DeclareRoles(Role.ADMIN)
+@RolesAllowed(Role.ADMIN)
+@Stateless
+@Api(tags = {"externalization"})
+public class ExternalizationExposure {
+
+    @Inject
+    private ExternalizationJobService jobService;
+
+    @Inject
+    private ExternalizerService externalizer;
+
+    @GET
+    @Path("jobs")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Get externalization backlog")
+    @ApiResponses(value = {
+        @ApiResponse(code = 200, message = "Externalization backlog", response = ExternalizationJobsRepresentation.class)})
+    public Response jobs() {
+        return Response.ok().entity(new ExternalizationJobsRepresentation(jobService, externalizer)).build();
+    }
+
+}
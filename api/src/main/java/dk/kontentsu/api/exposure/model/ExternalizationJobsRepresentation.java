@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.api.exposure.model;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import dk.kontentsu.externalization.ExternalizationJobService;
+import dk.kontentsu.externalization.ExternalizerService;
+import dk.kontentsu.model.ExternalizationJob;
+
+/**
+ * Representation of the externalization backlog - i.e. the jobs waiting to be processed and the state of the
+ * externalization executor.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class ExternalizationJobsRepresentation {
+
+    private final long pending;
+
+    private final long running;
+
+    private final long lag;
+
+    private final long queueDepth;
+
+    private final double throughput;
+
+    private final long coalesced;
+
+    private final List<FailedJob> failed;
+
+    public ExternalizationJobsRepresentation(final ExternalizationJobService jobService, final ExternalizerService externalizer) {
+        ZonedDateTime now = ZonedDateTime.now();
+        this.pending = jobService.count(ExternalizationJob.Status.PENDING);
+        this.running = jobService.count(ExternalizationJob.Status.RUNNING);
+        this.lag = jobService.findOldest(ExternalizationJob.Status.PENDING)
+                .map(j -> Duration.between(j.getCreated(), now).getSeconds())
+                .orElse(0L);
+        this.failed = jobService.find(ExternalizationJob.Status.FAILED)
+                .stream()
+                .map(FailedJob::new)
+                .collect(Collectors.toList());
+        this.queueDepth = externalizer.getQueueDepth();
+        this.throughput = externalizer.getThroughput();
+        this.coalesced = externalizer.getCoalesced();
+    }
+
+    public long getPending() {
+        return pending;
+    }
+
+    public long getRunning() {
+        return running;
+    }
+
+    /**
+     * @return age in seconds of the oldest pending job
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public List<FailedJob> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Representation of a job that has failed too many times.
+     */
+    public static class FailedJob {
+
+        private final UUID version;
+
+        private final int attempts;
+
+        private final String error;
+
+        public FailedJob(final ExternalizationJob job) {
+            this.version = job.getVersion();
+            this.attempts = job.getAttempts();
+            this.error = job.getError();
+        }
+
+        public UUID getVersion() {
+            return version;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+    }
+
+}
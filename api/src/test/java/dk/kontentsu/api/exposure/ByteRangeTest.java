@@ -0,0 +1,49 @@
+package dk.kontentsu.api.exposure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link ByteRange}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class ByteRangeTest {
+
+    @Test
+    public void testRange() {
+        ByteRange range = ByteRange.parse("bytes=10-19", 100).get();
+        assertTrue(range.isSatisfiable());
+        assertEquals(10, range.getStart());
+        assertEquals(10, range.getLength());
+        assertEquals("bytes 10-19/100", range.getContentRange());
+    }
+
+    @Test
+    public void testOpenRange() {
+        assertEquals("bytes 90-99/100", ByteRange.parse("bytes=90-", 100).get().getContentRange());
+        assertEquals("bytes 90-99/100", ByteRange.parse("bytes=90-200", 100).get().getContentRange());
+        assertEquals("bytes 80-99/100", ByteRange.parse("bytes=-20", 100).get().getContentRange());
+        assertEquals("bytes 0-99/100", ByteRange.parse("bytes=-200", 100).get().getContentRange());
+    }
+
+    @Test
+    public void testNotSatisfiable() {
+        assertFalse(ByteRange.parse("bytes=100-", 100).get().isSatisfiable());
+        assertFalse(ByteRange.parse("bytes=-0", 100).get().isSatisfiable());
+        assertEquals("bytes */100", ByteRange.parse("bytes=200-300", 100).get().getContentRange());
+    }
+
+    @Test
+    public void testInvalid() {
+        assertFalse(ByteRange.parse("bytes=0-1,5-6", 100).isPresent());
+        assertFalse(ByteRange.parse("bytes=20-10", 100).isPresent());
+        assertFalse(ByteRange.parse("bytes=-", 100).isPresent());
+        assertFalse(ByteRange.parse("items=0-1", 100).isPresent());
+        assertFalse(ByteRange.parse("bytes=99999999999999999999-", 100).isPresent());
+    }
+
+}
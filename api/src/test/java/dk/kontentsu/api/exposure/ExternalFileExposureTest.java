@@ -2,27 +2,39 @@ package dk.kontentsu.api.exposure;
 
 import static io.restassured.RestAssured.given;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.Month;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
 
 import javax.ejb.EJBException;
 import javax.persistence.NoResultException;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.HttpHeaders;
 
 import dk.kontentsu.api.exceptionmappers.ConstraintViolationExceptionMapper;
 import dk.kontentsu.api.exceptionmappers.ContainerExceptionMapper;
+import dk.kontentsu.externalization.PublishedFiles;
 import dk.kontentsu.model.Content;
 import dk.kontentsu.model.ExternalFile;
 import dk.kontentsu.model.Item;
 import dk.kontentsu.model.MimeType;
 import dk.kontentsu.model.Term;
-import dk.kontentsu.repository.ExternalFileRepository;
+import dk.kontentsu.repository.ExternalFileCache;
+import dk.kontentsu.repository.ItemRepository;
+import io.restassured.response.Response;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.test.JerseyTest;
@@ -46,7 +58,15 @@ public class ExternalFileExposureTest extends JerseyTest {
     private static final ZonedDateTime NOW = ZonedDateTime.now();
 
     @Mock
-    private ExternalFileRepository repo;
+    private ExternalFileCache cache;
+
+    @Mock
+    private ItemRepository itemRepo;
+
+    @Mock
+    private PublishedFiles publishedFiles;
+
+    private Content content;
 
     @Override
     protected Application configure() {
@@ -60,7 +80,9 @@ public class ExternalFileExposureTest extends JerseyTest {
                 .register(new AbstractBinder() {
                     @Override
                     protected void configure() {
-                        bind(repo).to(ExternalFileRepository.class);
+                        bind(cache).to(ExternalFileCache.class);
+                        bind(itemRepo).to(ItemRepository.class);
+                        bind(publishedFiles).to(PublishedFiles.class);
                     }
                 });
     }
@@ -69,15 +91,31 @@ public class ExternalFileExposureTest extends JerseyTest {
     @Override
     public void setUp() throws Exception {
         super.setUp();
-        Content content = new Content("{\"test\": \"test\"}".getBytes(), StandardCharsets.UTF_8);
+        content = new Content("{\"test\": \"test\"}".getBytes(), StandardCharsets.UTF_8);
         ExternalFile file = ExternalFile.builder()
                 .content(content)
                 .item(new Item(new Term().append("test").append("test"), MimeType.APPLICATION_JSON_TYPE))
                 .from(NOW)
                 .build();
-        Mockito.when(repo.getByUri(eq("test/test"), any(ZonedDateTime.class))).thenReturn(file);
-        Mockito.when(repo.getByUri(eq("test/test"), eq(null))).thenReturn(file);
-        Mockito.when(repo.getByUri(eq("test/not-found/"), eq(null))).thenThrow(new EJBException(new NoResultException("test")));
+        Mockito.when(cache.getByUri(eq("test/test"), any(ZonedDateTime.class))).thenReturn(file);
+        Mockito.when(cache.getByUri(eq("test/test"), eq(null))).thenReturn(file);
+        Mockito.when(cache.getByUri(eq("test/not-found/"), eq(null))).thenThrow(new EJBException(new NoResultException("test")));
+        Mockito.lenient().when(itemRepo.copyContent(eq(content.getUuid()), any(WritableByteChannel.class)))
+                .thenAnswer(i -> content.copyTo(i.getArgument(1)));
+        Mockito.lenient().when(itemRepo.copyContent(eq(content.getUuid()), any(WritableByteChannel.class), anyLong(), anyLong()))
+                .thenAnswer(i -> content.copyTo(i.getArgument(1), i.getArgument(2), i.getArgument(3)));
+
+        Content compressed = new Content("{\"test\": \"compressed\"}".getBytes(), StandardCharsets.UTF_8, true);
+        ExternalFile compressedFile = ExternalFile.builder()
+                .content(compressed)
+                .item(new Item(new Term().append("test").append("compressed"), MimeType.APPLICATION_JSON_TYPE))
+                .from(NOW)
+                .build();
+        Mockito.lenient().when(cache.getByUri(eq("test/compressed"), eq(null))).thenReturn(compressedFile);
+        Mockito.lenient().when(itemRepo.copyContent(eq(compressed.getUuid()), any(WritableByteChannel.class)))
+                .thenAnswer(i -> compressed.copyTo(i.getArgument(1)));
+        Mockito.lenient().when(itemRepo.copyCompressedContent(eq(compressed.getUuid()), any(WritableByteChannel.class)))
+                .thenAnswer(i -> compressed.copyCompressedTo(i.getArgument(1)));
     }
 
     @Test
@@ -91,6 +129,138 @@ public class ExternalFileExposureTest extends JerseyTest {
                 .statusCode(200);
     }
 
+    @Test
+    public void testGetCompressedContent() {
+        given().when()
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .get(target("/files/test/compressed").getUri())
+                .then()
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .body("test", equalTo("compressed"))
+                .statusCode(200);
+    }
+
+    @Test
+    public void testNotModified() {
+        Response response = given().when()
+                .get(target("/files/test/test").getUri())
+                .then()
+                .statusCode(200)
+                .extract().response();
+        String tag = response.header(HttpHeaders.ETAG);
+        String modified = response.header(HttpHeaders.LAST_MODIFIED);
+        assertEquals("\"" + content.getHash() + "\"", tag);
+
+        given().when()
+                .header(HttpHeaders.IF_NONE_MATCH, tag)
+                .get(target("/files/test/test").getUri())
+                .then()
+                .header(HttpHeaders.ETAG, tag)
+                .statusCode(304);
+
+        given().when()
+                .header(HttpHeaders.IF_MODIFIED_SINCE, modified)
+                .get(target("/files/test/test").getUri())
+                .then()
+                .statusCode(304);
+
+        given().when()
+                .header(HttpHeaders.IF_NONE_MATCH, "\"other\"")
+                .get(target("/files/test/test").getUri())
+                .then()
+                .body("test", equalTo("test"))
+                .statusCode(200);
+
+        Mockito.verify(itemRepo, Mockito.times(2)).copyContent(eq(content.getUuid()), any(WritableByteChannel.class));
+    }
+
+    @Test
+    public void testRange() {
+        String body = given().when()
+                .header("Range", "bytes=2-5")
+                .get(target("/files/test/test").getUri())
+                .then()
+                .header("Content-Range", "bytes 2-5/16")
+                .statusCode(206)
+                .extract().asString();
+        assertEquals("test", body);
+
+        given().when()
+                .header("Range", "bytes=100-")
+                .get(target("/files/test/test").getUri())
+                .then()
+                .header("Content-Range", "bytes */16")
+                .statusCode(416);
+
+        given().when()
+                .header("Range", "bytes=2-5")
+                .header("If-Range", "\"other\"")
+                .get(target("/files/test/test").getUri())
+                .then()
+                .header("Accept-Ranges", "bytes")
+                .body("test", equalTo("test"))
+                .statusCode(200);
+    }
+
+    @Test
+    public void testGetPublishedContent() throws Exception {
+        Path published = Files.createTempFile("junit", ".json");
+        try {
+            Files.write(published, "{\"test\": \"disk\"}".getBytes(StandardCharsets.UTF_8));
+            Mockito.when(publishedFiles.find(any(ExternalFile.class))).thenReturn(Optional.of(published));
+
+            given().when()
+                    .get(target("/files/test/test").getUri())
+                    .then()
+                    .body("test", equalTo("disk"))
+                    .statusCode(200);
+
+            String body = given().when()
+                    .header("Range", "bytes=10-13")
+                    .get(target("/files/test/test").getUri())
+                    .then()
+                    .statusCode(206)
+                    .extract().asString();
+            assertEquals("disk", body);
+            Mockito.verify(itemRepo, Mockito.never()).copyContent(any(), any(WritableByteChannel.class));
+
+            Files.write(published, "{}".getBytes(StandardCharsets.UTF_8));
+            given().when()
+                    .get(target("/files/test/test").getUri())
+                    .then()
+                    .body("test", equalTo("test"))
+                    .statusCode(200);
+        } finally {
+            Files.delete(published);
+        }
+    }
+
+    @Test
+    public void testGetPrecompressedContent() throws Exception {
+        Path precompressed = Files.createTempFile("junit", ".json.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(precompressed))) {
+                out.write("{\"test\": \"disk\"}".getBytes(StandardCharsets.UTF_8));
+            }
+            Mockito.when(publishedFiles.findCompressed(any(ExternalFile.class))).thenReturn(Optional.of(precompressed));
+
+            Response response = given().when()
+                    .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                    .get(target("/files/test/test").getUri())
+                    .then()
+                    .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .body("test", equalTo("disk"))
+                    .statusCode(200)
+                    .extract().response();
+            assertEquals("\"" + content.getHash() + "-gzip\"", response.header(HttpHeaders.ETAG));
+            Mockito.verify(itemRepo, Mockito.never()).copyCompressedContent(any(), any(WritableByteChannel.class));
+        } finally {
+            Files.delete(precompressed);
+        }
+    }
+
     @Test
     public void testNotFound() {
         given().when()
@@ -124,6 +294,6 @@ public class ExternalFileExposureTest extends JerseyTest {
 
         LocalDateTime local = LocalDateTime.of(2010, Month.DECEMBER, 24, 20, 0);
         ZonedDateTime time = ZonedDateTime.of(local, ZoneOffset.UTC);
-        Mockito.verify(repo, Mockito.times(1)).getByUri("test/test", time);
+        Mockito.verify(cache, Mockito.times(1)).getByUri("test/test", time);
     }
 }
@@ -0,0 +1,146 @@
+package dk.kontentsu.api.exposure;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Optional;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.SecurityContext;
+
+import dk.kontentsu.api.ObjectMapperProvider;
+import dk.kontentsu.api.exceptionmappers.ContainerExceptionMapper;
+import dk.kontentsu.externalization.ExternalizationException;
+import dk.kontentsu.externalization.ExternalizationJobService;
+import dk.kontentsu.externalization.ExternalizerService;
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.ExternalizationJob;
+import dk.kontentsu.model.Role;
+import dk.kontentsu.model.Version;
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.filter.RolesAllowedDynamicFeature;
+import org.glassfish.jersey.test.JerseyTest;
+import org.glassfish.jersey.test.TestProperties;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Test for {@link ExternalizationExposure}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class ExternalizationExposureTest extends JerseyTest {
+
+    private static final String ROLE_HEADER = "X-Test-Role";
+
+    @Mock
+    private ExternalizationJobService jobService;
+
+    @Mock
+    private ExternalizerService externalizer;
+
+    @Override
+    protected Application configure() {
+        forceSet(TestProperties.CONTAINER_PORT, "0");
+        MockitoAnnotations.initMocks(this);
+
+        return new ResourceConfig()
+                .register(ExternalizationExposure.class)
+                .register(ContainerExceptionMapper.class)
+                .register(ObjectMapperProvider.class)
+                .register(TestSecurityFilter.class)
+                .register(RolesAllowedDynamicFeature.class)
+                .register(new AbstractBinder() {
+                    @Override
+                    protected void configure() {
+                        bind(jobService).to(ExternalizationJobService.class);
+                        bind(externalizer).to(ExternalizerService.class);
+                    }
+                });
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        ExternalizationJob failed = new ExternalizationJob(Version.builder()
+                .content(new Content("{}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+                .from(ZonedDateTime.now())
+                .build());
+        failed.start();
+        failed.failed(new ExternalizationException("test"), ZonedDateTime.now(), 1);
+        when(jobService.count(ExternalizationJob.Status.PENDING)).thenReturn(2L);
+        when(jobService.count(ExternalizationJob.Status.RUNNING)).thenReturn(1L);
+        when(jobService.findOldest(ExternalizationJob.Status.PENDING)).thenReturn(Optional.empty());
+        when(jobService.find(ExternalizationJob.Status.FAILED)).thenReturn(Collections.singletonList(failed));
+        when(externalizer.getQueueDepth()).thenReturn(3L);
+    }
+
+    @Test
+    public void testJobs() {
+        given().header(ROLE_HEADER, Role.ADMIN)
+                .get(target("externalization/jobs").getUri())
+                .then()
+                .statusCode(200)
+                .body("pending", is(2))
+                .body("running", is(1))
+                .body("queueDepth", is(3))
+                .body("failed[0].attempts", is(1))
+                .body("failed[0].error", is("test"));
+    }
+
+    @Test
+    public void testJobsNotAdmin() {
+        given().header(ROLE_HEADER, "user")
+                .get(target("externalization/jobs").getUri())
+                .then()
+                .statusCode(403);
+    }
+
+    /**
+     * Security filter authenticating requests with the role given in a header.
+     */
+    @Priority(Priorities.AUTHENTICATION)
+    public static class TestSecurityFilter implements ContainerRequestFilter {
+
+        @Override
+        public void filter(final ContainerRequestContext ctx) {
+            String role = ctx.getHeaderString(ROLE_HEADER);
+            ctx.setSecurityContext(new SecurityContext() {
+                @Override
+                public Principal getUserPrincipal() {
+                    return () -> "test";
+                }
+
+                @Override
+                public boolean isUserInRole(final String r) {
+                    return r.equals(role);
+                }
+
+                @Override
+                public boolean isSecure() {
+                    return false;
+                }
+
+                @Override
+                public String getAuthenticationScheme() {
+                    return SecurityContext.BASIC_AUTH;
+                }
+            });
+        }
+
+    }
+
+}
@@ -0,0 +1,160 @@
+package dk.kontentsu.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.ejb.embeddable.EJBContainer;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.transaction.UserTransaction;
+
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.Interval;
+import dk.kontentsu.model.Item;
+import dk.kontentsu.model.MimeType;
+import dk.kontentsu.model.ReferenceType;
+import dk.kontentsu.model.Term;
+import dk.kontentsu.model.Version;
+import dk.kontentsu.test.TestEJBContainer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Integration test for {@link DependencyRepository}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class DependencyRepositoryIT {
+
+    private static final ZonedDateTime NOW = ZonedDateTime.now();
+
+    private static EJBContainer container;
+
+    @Inject
+    private DependencyRepository dependencyRepo;
+
+    @Inject
+    private ItemRepository itemRepo;
+
+    @Inject
+    private TermRepository termRepo;
+
+    @Inject
+    private EntityManager em;
+
+    @Resource
+    private UserTransaction userTransaction;
+
+    private Item fragment;
+    private Item section;
+    private Item page;
+    private Version sectionVersion;
+    private Version pageVersion;
+
+    @BeforeClass
+    public static void setUpClass() {
+        container = TestEJBContainer.create();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        if (container != null) {
+            container.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        TestEJBContainer.inject(container, this);
+        try {
+            userTransaction.begin();
+            fragment = itemRepo.save(create("items/fragment/"));
+            fragment.addVersion(createVersion().build());
+
+            page = itemRepo.save(create("items/page/"));
+            section = itemRepo.save(create("items/section/"));
+
+            pageVersion = createVersion()
+                    .reference(section, ReferenceType.COMPOSITION)
+                    .build();
+            page.addVersion(pageVersion);
+            dependencyRepo.index(pageVersion);
+
+            sectionVersion = createVersion()
+                    .reference(fragment, ReferenceType.COMPOSITION)
+                    .build();
+            section.addVersion(sectionVersion);
+            dependencyRepo.index(sectionVersion);
+        } finally {
+            userTransaction.commit();
+        }
+    }
+
+    private Item create(final String uri) {
+        Term path = termRepo.create(new Item.URI(uri));
+        return new Item(path, MimeType.APPLICATION_JSON_TYPE);
+    }
+
+    private Version.Builder createVersion() {
+        return Version.builder()
+                .content(new Content("{}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+                .from(NOW);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            userTransaction.begin();
+            dependencyRepo.findAll().forEach(em::remove);
+            em.remove(em.find(Item.class, page.getId()));
+            em.remove(em.find(Item.class, section.getId()));
+            em.remove(em.find(Item.class, fragment.getId()));
+        } finally {
+            userTransaction.commit();
+        }
+    }
+
+    @Test
+    public void testFindDirectDependents() throws Exception {
+        try {
+            userTransaction.begin();
+            List<Version> result = dependencyRepo.findVersions(section, new Interval(NOW));
+            assertEquals(1, result.size());
+            assertEquals(pageVersion, result.get(0));
+        } finally {
+            userTransaction.commit();
+        }
+    }
+
+    @Test
+    public void testFindTransitiveDependents() throws Exception {
+        try {
+            userTransaction.begin();
+            List<Version> result = dependencyRepo.findVersions(fragment, new Interval(NOW));
+            assertEquals(2, result.size());
+            assertTrue(result.contains(pageVersion));
+            assertTrue(result.contains(sectionVersion));
+        } finally {
+            userTransaction.commit();
+        }
+    }
+
+    @Test
+    public void testNotOverlapping() throws Exception {
+        try {
+            userTransaction.begin();
+            assertTrue(dependencyRepo.findVersions(fragment, new Interval(NOW.minusDays(2), NOW.minusDays(1))).isEmpty());
+        } finally {
+            userTransaction.commit();
+        }
+    }
+
+}
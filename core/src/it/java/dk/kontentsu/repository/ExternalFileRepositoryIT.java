@@ -215,4 +215,17 @@ public class ExternalFileRepositoryIT {
         }
     }
 
+    @Test
+    public void testFindNextChange() throws Exception {
+        try {
+            userTransaction.begin();
+            assertEquals(FROM.minusHours(12).toInstant(), fileRepo.findNextChange(NOW).get().toInstant());
+            assertEquals(TO.toInstant(), fileRepo.findNextChange(FROM).get().toInstant());
+            assertEquals(TO.plusMinutes(4).toInstant(), fileRepo.findNextChange(TO).get().toInstant());
+            assertFalse(fileRepo.findNextChange(TO.plusMinutes(4)).isPresent());
+        } finally {
+            userTransaction.commit();
+        }
+    }
+
 }
@@ -3,6 +3,8 @@ package dk.kontentsu.repository;
 import static com.googlecode.catchexception.CatchException.catchException;
 import static com.googlecode.catchexception.CatchException.caughtException;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -348,6 +350,61 @@ public class ItemRepositoryIT {
 
             assertNotNull(content.getData());
             assertEquals(1, content.getSize());
+            assertEquals("6b86b273ff34fce19d6b804eff5a3f5747ada4eaa22f1d49c01e52ddb7875b4b", content.getHash());
+        } finally {
+            userTransaction.rollback();
+        }
+    }
+
+    @Test
+    public void testSaveSameContent() throws Exception {
+        try {
+            userTransaction.begin();
+            Content first = itemRepo.saveContent(new ByteArrayInputStream(new byte[]{'2'}), StandardCharsets.UTF_8, MimeType.IMAGE_ANY_TYPE);
+            Content second = itemRepo.saveContent(new ByteArrayInputStream(new byte[]{'2'}), StandardCharsets.UTF_8, MimeType.IMAGE_ANY_TYPE);
+            Content other = itemRepo.saveContent(new ByteArrayInputStream(new byte[]{'2'}), null, MimeType.IMAGE_ANY_TYPE);
+
+            assertEquals(first, second);
+            assertNotEquals(first, other);
+            assertEquals(first, itemRepo.findContent(new Content(new byte[]{'2'}, StandardCharsets.UTF_8)));
+        } finally {
+            userTransaction.rollback();
+        }
+    }
+
+    @Test
+    public void testSaveContentCreatedInMemory() throws Exception {
+        try {
+            userTransaction.begin();
+            Content first = itemRepo.saveContent(new Content(new byte[]{'3'}, StandardCharsets.UTF_8));
+            Content second = itemRepo.saveContent(new Content(new byte[]{'3'}, StandardCharsets.UTF_8));
+
+            assertNotNull(first.getId());
+            assertEquals(first, second);
+            assertEquals("3", second.getData());
+        } finally {
+            userTransaction.rollback();
+        }
+    }
+
+    @Test
+    public void testDeleteUnreferencedContent() throws Exception {
+        try {
+            userTransaction.begin();
+            item = itemRepo.get(item.getUuid());
+            Content unreferenced = itemRepo.saveContent(new ByteArrayInputStream(new byte[]{'4'}), StandardCharsets.UTF_8, MimeType.IMAGE_ANY_TYPE);
+            Content referenced = itemRepo.saveContent(new ByteArrayInputStream(new byte[]{'5'}), StandardCharsets.UTF_8, MimeType.IMAGE_ANY_TYPE);
+            item.addVersion(Version.builder()
+                    .from(NOW.minusDays(100))
+                    .to(NOW.minusDays(99))
+                    .metadata(new Metadata.Key(MetadataType.PAGE, "key"), new Metadata("This is metadata"))
+                    .content(referenced)
+                    .build());
+
+            assertTrue(itemRepo.deleteUnreferencedContent(c -> true).isEmpty());
+            assertFalse(itemRepo.findContent(unreferenced.getHash(), StandardCharsets.UTF_8).isPresent());
+            assertFalse(itemRepo.isContentSaved(unreferenced.getHash()));
+            assertEquals(referenced, itemRepo.findContent(referenced.getHash(), StandardCharsets.UTF_8).get());
         } finally {
             userTransaction.rollback();
         }
@@ -37,4 +37,158 @@ public interface Config extends org.aeonbits.owner.Config {
     @DefaultValue("CdnEncryptionKey")
     String dbEncryptionKey();
 
+    /**
+     * Number of threads used for externalizing versions in parallel.
+     *
+     * @return size of the externalization thread pool
+     */
+    @Key("externalization.pool.size")
+    @DefaultValue("4")
+    int externalizationPoolSize();
+
+    /**
+     * Time window in milliseconds in which externalization requests are merged into a single externalization. A value
+     * of zero disables merging.
+     *
+     * @return externalization debounce window in milliseconds
+     */
+    @Key("externalization.debounce.millis")
+    @DefaultValue("0")
+    long externalizationDebounceMillis();
+
+    /**
+     * Maximum number of externalization jobs processed at the same time.
+     *
+     * @return number of concurrent externalization jobs
+     */
+    @Key("externalization.jobs.concurrency")
+    @DefaultValue("4")
+    int externalizationJobsConcurrency();
+
+    /**
+     * Number of times an externalization job is attempted before it is marked as failed.
+     *
+     * @return maximum number of attempts
+     */
+    @Key("externalization.jobs.max.attempts")
+    @DefaultValue("5")
+    int externalizationJobsMaxAttempts();
+
+    /**
+     * Delay in seconds before the first retry of a failed externalization job. The delay is doubled for each
+     * following attempt.
+     *
+     * @return initial retry delay in seconds
+     */
+    @Key("externalization.jobs.retry.delay.seconds")
+    @DefaultValue("30")
+    long externalizationJobsRetryDelaySeconds();
+
+    /**
+     * Maximum estimated number of bytes used by parsed JSON fragments cached when externalizing versions. Fragments
+     * larger than this are not cached.
+     *
+     * @return size of the fragment cache in bytes
+     */
+    @Key("externalization.fragment.cache.bytes")
+    @DefaultValue("33554432")
+    long externalizationFragmentCacheBytes();
+
+    /**
+     * Publish files to hosts as generations written next to the host path, switching the host path to a new generation
+     * atomically. When disabled, files are written to the host path in place.
+     *
+     * @return true if files should be published staged
+     */
+    @Key("externalization.publish.staged")
+    @DefaultValue("false")
+    boolean externalizationPublishStaged();
+
+    /**
+     * Number of threads used for publishing files to hosts. Hosts are published concurrently, and the files of a host
+     * are written in parallel batches.
+     *
+     * @return size of the publishing thread pool
+     */
+    @Key("externalization.publish.pool.size")
+    @DefaultValue("8")
+    int externalizationPublishPoolSize();
+
+    /**
+     * Number of files of a host written by a single publishing task.
+     *
+     * @return publishing batch size
+     */
+    @Key("externalization.publish.batch.size")
+    @DefaultValue("500")
+    int externalizationPublishBatchSize();
+
+    /**
+     * Publish only the files starting, ending or changed since the last publication, instead of all files available.
+     *
+     * @return true if only changed files should be published
+     */
+    @Key("externalization.publish.delta")
+    @DefaultValue("false")
+    boolean externalizationPublishDelta();
+
+    /**
+     * Minimum time in minutes between publications of all files available, when only publishing changed files.
+     *
+     * @return minutes between full publications
+     */
+    @Key("externalization.publish.reconcile.minutes")
+    @DefaultValue("60")
+    long externalizationPublishReconcileMinutes();
+
+    /**
+     * Publish a gzip compressed copy of textual files next to the files, with the extension .gz added, so web servers
+     * can send precompressed data to clients accepting gzip encoded data.
+     *
+     * @return true if compressed copies of textual files should be published
+     */
+    @Key("externalization.publish.compressed")
+    @DefaultValue("false")
+    boolean externalizationPublishCompressed();
+
+    /**
+     * Directory of the content store keeping content data in the local file system, with the database only holding
+     * the metadata and hash of the content. When empty, content data is stored in the database.
+     *
+     * @return path of the content store
+     */
+    @Key("content.store.path")
+    @DefaultValue("")
+    String contentStorePath();
+
+    /**
+     * Store the data of textual content compressed in the gzip format. Compressed data is decompressed when read, or
+     * sent as is to clients accepting gzip encoded data.
+     *
+     * @return true if textual content should be stored compressed
+     */
+    @Key("content.compression")
+    @DefaultValue("false")
+    boolean contentCompression();
+
+    /**
+     * Minimum age in minutes of data in the content store before it is deleted, when the content referring to it is
+     * no longer referenced. Data saved again within this time - e.g. by an upload not yet committed - is kept.
+     *
+     * @return minutes unreferenced data is kept in the content store
+     */
+    @Key("content.sweep.grace.minutes")
+    @DefaultValue("60")
+    long contentSweepGraceMinutes();
+
+    /**
+     * Maximum number of files cached when getting files by URI. Cached files are evicted when the files available
+     * change, i.e. when a file starts or ends, or when files are externalized. A value of zero disables caching.
+     *
+     * @return size of the file cache
+     */
+    @Key("files.cache.size")
+    @DefaultValue("10000")
+    int filesCacheSize();
+
 }
@@ -1,9 +1,13 @@
 package dk.kontentsu.externalization;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
 
 import dk.kontentsu.model.Content;
+import dk.kontentsu.model.Version;
 import dk.kontentsu.model.processing.TemporalReferenceTree;
 import dk.kontentsu.model.processing.TemporalReferenceTreeVisitor;
 import org.hashids.Hashids;
@@ -25,24 +29,55 @@ public class ExternalizationIdentifierVisitor implements TemporalReferenceTreeVi
 
     private final List<Integer> identifiers;
 
+    private Integer root;
+
     public ExternalizationIdentifierVisitor(final ExternalizationVisitor nested) {
         this.nested = nested;
         this.identifiers = new ArrayList<>();
     }
 
+    /**
+     * Get the id of a temporal reference tree from the versions making up the tree, without visiting the tree.
+     *
+     * @param root the version at the root of the tree
+     * @param versions the other versions in the tree
+     * @return the id of the tree
+     */
+    public static String getContentId(final Version root, final Collection<Version> versions) {
+        return getContentId(root.getId(), versions.stream().map(Version::getId));
+    }
+
+    private static String getContentId(final Integer root, final Stream<Integer> identifiers) {
+        return new Hashids(SALT).encode(Stream.concat(Stream.of(root), identifiers)
+                .filter(Objects::nonNull)
+                .sorted()
+                .mapToLong(i -> i)
+                .toArray());
+    }
+
     public String getContentId() {
-        return new Hashids(SALT).encode(identifiers.stream().sorted().mapToLong(i -> i).toArray());
+        return getContentId(root, identifiers.stream());
     }
 
     @Override
     public void visit(final TemporalReferenceTree.Node node) {
-        identifiers.add(node.getVersion().getId());
+        if (node.isRoot()) {
+            root = node.getVersion().getId();
+        } else {
+            identifiers.add(node.getVersion().getId());
+        }
         nested.visit(node);
     }
 
+    /**
+     * Get results for the tree visited since results were last requested. The root of the tree is only visited for
+     * the first tree, so it is included in the id of all trees.
+     */
     @Override
     public Results getResults() {
-        return new Results(getContentId(), nested.getResults().getContent());
+        Results results = new Results(getContentId(), nested.getResults().getContent());
+        identifiers.clear();
+        return results;
     }
 
     /**
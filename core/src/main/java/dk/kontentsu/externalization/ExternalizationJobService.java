@@ -0,0 +1,266 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.externalization;
+
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import dk.kontentsu.configuration.Config;
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.ExternalizationJob;
+import dk.kontentsu.repository.ExternalizationJobRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Service processing the persisted externalization jobs. Jobs are processed with bounded concurrency, failed jobs are
+ * retried with exponential back-off, and jobs failing too many times are kept with status
+ * {@link ExternalizationJob.Status#FAILED}.
+ *
+ * @author Jens Borch Christiansen
+ */
+@LocalBean
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ExternalizationJobService {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    @Inject
+    private ExternalizationJobRepository jobRepo;
+
+    @Inject
+    private ExternalizerService externalizer;
+
+    @Inject
+    private ExternalizationJobService self;
+
+    @Inject
+    private Config config;
+
+    private Semaphore permits;
+
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(config.externalizationJobsConcurrency());
+        List<ExternalizationJob> running = jobRepo.findByStatus(ExternalizationJob.Status.RUNNING);
+        LOGGER.info("Resetting {} externalization job(s) interrupted by shutdown", running.size());
+        running.forEach(ExternalizationJob::reset);
+    }
+
+    /**
+     * Periodically start processing jobs that are due, e.g. jobs waiting to be retried.
+     */
+    @Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void poll() {
+        drain();
+    }
+
+    /**
+     * Start processing pending jobs that are due, as long as there are free processing slots. Queued externalizations
+     * are started first, and only as many jobs as there are free slots are claimed, so the method never waits for a
+     * slot.
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public synchronized void drain() {
+        dispatch();
+        int free = permits.availablePermits();
+        if (free > 0 && permits.tryAcquire(free)) {
+            List<ExternalizationJob> jobs = Collections.emptyList();
+            try {
+                jobs = self.claim(free);
+            } finally {
+                permits.release(free - jobs.size());
+            }
+            LOGGER.debug("Claimed {} externalization job(s)", jobs.size());
+            jobs.forEach(this::process);
+        }
+    }
+
+    /**
+     * Externalize a version using the jobs already created for it. If no processing slot is free, the version is
+     * queued and externalized when a slot is released. The jobs are claimed when the externalization is started, so
+     * they stay pending while queued.
+     *
+     * @param version UUID of the version to externalize
+     * @return future completed with the new external files created
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public CompletableFuture<List<ExternalFile>> execute(final UUID version) {
+        CompletableFuture<List<ExternalFile>> result = new CompletableFuture<>();
+        waiting.add(() -> execute(version, result));
+        dispatch();
+        return result;
+    }
+
+    private void execute(final UUID version, final CompletableFuture<List<ExternalFile>> result) {
+        List<ExternalizationJob> jobs;
+        try {
+            jobs = self.claim(version);
+        } catch (RuntimeException ex) {
+            release();
+            result.completeExceptionally(ex);
+            return;
+        }
+        externalize(version).whenComplete((files, ex) -> {
+            try {
+                if (ex == null) {
+                    jobs.forEach(j -> self.completed(j.getUuid()));
+                } else {
+                    jobs.forEach(j -> self.failed(j.getUuid(), unwrap(ex)));
+                }
+            } finally {
+                release();
+            }
+            if (ex == null) {
+                result.complete(files);
+            } else {
+                result.completeExceptionally(unwrap(ex));
+            }
+        });
+    }
+
+    /**
+     * Start queued externalizations for as long as there are free processing slots.
+     */
+    private void dispatch() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                permits.release();
+            } else {
+                next.run();
+            }
+        }
+    }
+
+    private void release() {
+        permits.release();
+        dispatch();
+    }
+
+    private void process(final ExternalizationJob job) {
+        externalize(job.getVersion()).whenComplete((files, ex) -> {
+            try {
+                if (ex == null) {
+                    self.completed(job.getUuid());
+                } else {
+                    LOGGER.debug("Externalization job {} failed", job.getUuid(), ex);
+                    self.failed(job.getUuid(), unwrap(ex));
+                }
+            } finally {
+                release();
+            }
+            self.drain();
+        });
+    }
+
+    private CompletableFuture<List<ExternalFile>> externalize(final UUID version) {
+        try {
+            return externalizer.externalize(version);
+        } catch (RuntimeException ex) {
+            CompletableFuture<List<ExternalFile>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new ExternalizationException("Error externalizing version " + version, ex));
+            return failed;
+        }
+    }
+
+    private static Throwable unwrap(final Throwable ex) {
+        return (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<ExternalizationJob> claim(final int max) {
+        List<ExternalizationJob> jobs = jobRepo.findDue(ZonedDateTime.now(), max);
+        jobs.forEach(ExternalizationJob::start);
+        return jobs;
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<ExternalizationJob> claim(final UUID version) {
+        List<ExternalizationJob> jobs = jobRepo.findByVersion(version)
+                .stream()
+                .filter(ExternalizationJob::isPending)
+                .collect(Collectors.toList());
+        jobs.forEach(ExternalizationJob::start);
+        return jobs;
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void completed(final UUID job) {
+        jobRepo.find(job).ifPresent(jobRepo::delete);
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void failed(final UUID job, final Throwable cause) {
+        jobRepo.find(job).ifPresent(j -> {
+            long delay = config.externalizationJobsRetryDelaySeconds() << Math.min(j.getAttempts() - 1, 16);
+            j.failed(cause, ZonedDateTime.now().plusSeconds(delay), config.externalizationJobsMaxAttempts());
+            if (j.isPending()) {
+                LOGGER.warn("Externalization of version {} failed, retrying in {} seconds", j.getVersion(), delay);
+            } else {
+                LOGGER.error("Externalization of version {} failed after {} attempts", j.getVersion(), j.getAttempts(), cause);
+            }
+        });
+    }
+
+    public long count(final ExternalizationJob.Status status) {
+        return jobRepo.count(status);
+    }
+
+    public Optional<ExternalizationJob> findOldest(final ExternalizationJob.Status status) {
+        return jobRepo.findOldest(status);
+    }
+
+    public List<ExternalizationJob> find(final ExternalizationJob.Status status) {
+        return jobRepo.findByStatus(status);
+    }
+
+}
@@ -23,8 +23,10 @@
  */
 package dk.kontentsu.externalization;
 
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -32,37 +34,49 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
-import javax.ejb.AsyncResult;
-import javax.ejb.Asynchronous;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.LocalBean;
 import javax.ejb.Singleton;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.event.Event;
 import javax.enterprise.inject.Any;
 import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
 import javax.enterprise.util.AnnotationLiteral;
 import javax.inject.Inject;
 
+import dk.kontentsu.configuration.Config;
 import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.Interval;
 import dk.kontentsu.model.Item;
 import dk.kontentsu.model.MimeType;
-import dk.kontentsu.model.ReferenceType;
 import dk.kontentsu.model.Version;
 import dk.kontentsu.model.processing.InjectableContentProcessingScope;
 import dk.kontentsu.model.processing.ReferenceProcessor;
 import dk.kontentsu.model.processing.TemporalReferenceTree;
+import dk.kontentsu.repository.DependencyRepository;
+import dk.kontentsu.repository.ExternalFileCache;
 import dk.kontentsu.repository.ExternalFileRepository;
 import dk.kontentsu.repository.ItemRepository;
 import dk.kontentsu.spi.ContentProcessingMimeType;
-import java.util.EnumMap;
+import dk.kontentsu.util.Coalescer;
+import dk.kontentsu.util.KeyedExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -78,76 +92,162 @@ public class ExternalizerService {
 
     private static final Logger LOGGER = LogManager.getLogger();
 
-    private final Set<UUID> processing = new HashSet<>();
-
     @Inject
     private ExternalFileRepository fileRepo;
 
     @Inject
     private ItemRepository itemRepo;
 
+    @Inject
+    private DependencyRepository dependencyRepo;
+
     @Inject
     private ScheduledExternalizerService scheduleService;
 
+    @Inject
+    private Event<ExternalFileCache.Changed> changed;
+
+    @Inject
+    private ExternalizerService self;
+
+    @Inject
+    private Config config;
+
     @Inject
     private BeanManager bm;
 
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
     private Map<MimeType, Bean<?>> externalizationVisitorBeans;
 
+    private final Map<MimeType, Optional<Bean<?>>> resolvedExternalizationVisitorBeans = new ConcurrentHashMap<>();
+
+    private ExecutorService pool;
+
+    private KeyedExecutor<Item.URI> executor;
+
+    private ScheduledExecutorService scheduler;
+
+    private Coalescer<UUID, List<ExternalFile>> coalescer;
+
     @PostConstruct
     public void init() {
         externalizationVisitorBeans = getExternalizationVisitorBeansMap();
+        LOGGER.info("Using {} threads for externalization", config.externalizationPoolSize());
+        pool = Executors.newFixedThreadPool(config.externalizationPoolSize(), threadFactory);
+        executor = new KeyedExecutor<>(pool);
+        if (config.externalizationDebounceMillis() > 0) {
+            LOGGER.info("Merging externalization requests within {} ms", config.externalizationDebounceMillis());
+            scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            coalescer = new Coalescer<>(scheduler, config.externalizationDebounceMillis(), TimeUnit.MILLISECONDS, self::externalize);
+        }
     }
 
-    private boolean processing(final UUID uuid) {
-        synchronized (processing) {
-            if (processing.contains(uuid)) {
-                return true;
-            } else {
-                processing.add(uuid);
-                return false;
-            }
+    @PreDestroy
+    public void destroy() {
+        pool.shutdown();
+        if (scheduler != null) {
+            scheduler.shutdown();
         }
     }
 
-    private void processed(final UUID uuid) {
-        synchronized (processing) {
-            processing.remove(uuid);
-        }
+    /**
+     * @return number of versions waiting to be or currently being externalized
+     */
+    public long getQueueDepth() {
+        return executor.getQueueDepth();
     }
 
-    @Asynchronous
-    public Future<List<ExternalFile>> externalize(final UUID version) {
-        Version v = itemRepo.getVersion(version);
-        LOGGER.info("Externalizing version {} and its references", version);
-        return new AsyncResult<>(externalize(v));
+    /**
+     * @return average number of versions externalized per second
+     */
+    public double getThroughput() {
+        return executor.getThroughput();
+    }
 
+    /**
+     * @return number of externalization requests merged into an already pending externalization
+     */
+    public long getCoalesced() {
+        return (coalescer == null) ? 0 : coalescer.getCoalesced();
     }
 
+    /**
+     * Externalize a version and all versions depending on it. If a debounce window has been configured, the request
+     * is merged with other requests received within the window, and the returned future is completed with the files
+     * from the merged externalization. The method returns as soon as the versions have been submitted for
+     * externalization.
+     *
+     * @param version UUID of the version to externalize
+     * @return future completed with the new external files created
+     */
+    public CompletableFuture<List<ExternalFile>> externalize(final UUID version) {
+        if (coalescer == null) {
+            Version v = itemRepo.getVersion(version);
+            LOGGER.info("Externalizing version {} and its references", version);
+            return externalize(v);
+        } else {
+            LOGGER.info("Scheduling version {} and its references for externalization", version);
+            return coalescer.submit(version);
+        }
+    }
+
+    /**
+     * Externalize a set of versions and all versions depending on them as one run. Versions no longer active are
+     * ignored, and versions depending on more than one of the given versions are only externalized once.
+     *
+     * @param versions UUIDs of the versions to externalize
+     * @return future completed with the new external files created
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public CompletableFuture<List<ExternalFile>> externalize(final Set<UUID> versions) {
+        LOGGER.info("Externalizing {} merged version(s) and their references", versions.size());
+        return externalizeAll(versions.stream()
+                .map(itemRepo::getVersion)
+                .filter(Version::isActive)
+                .flatMap(v -> findVersionsToExternalize(v).stream())
+                .distinct()
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Externalize a version and all versions depending on it. Versions of different items are externalized in
+     * parallel, while versions of the same item are externalized in the order they are submitted. Each version is
+     * externalized in its own transaction, so the caller's transaction is not held while waiting for them.
+     *
+     * @param version the version to externalize
+     * @return future completed with the new external files created
+     */
     @TransactionAttribute(TransactionAttributeType.MANDATORY)
-    public List<ExternalFile> externalize(final Version version) {
-        List<Version> versions = findVersionsToExternalize(version);
-        return versions.stream()
-                .flatMap(v -> externalizeVersion(v).stream())
-                .sorted((f1, f2) -> f1.getInterval().getFrom().compareTo(f2.getInterval().getFrom()))
+    public CompletableFuture<List<ExternalFile>> externalize(final Version version) {
+        return externalizeAll(findVersionsToExternalize(version));
+    }
+
+    private CompletableFuture<List<ExternalFile>> externalizeAll(final List<Version> versions) {
+        List<CompletableFuture<List<ExternalFile>>> futures = versions
+                .stream()
+                .map(v -> submit(v.getItem().getUri(), v.getUuid()))
                 .collect(Collectors.toList());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(v -> futures.stream()
+                        .flatMap(f -> f.join().stream())
+                        .sorted((f1, f2) -> f1.getInterval().getFrom().compareTo(f2.getInterval().getFrom()))
+                        .collect(Collectors.toList()));
+    }
 
+    private CompletableFuture<List<ExternalFile>> submit(final Item.URI uri, final UUID version) {
+        return executor.submit(uri, () -> self.externalizeVersion(version));
     }
 
     private List<Version> findVersionsToExternalize(final Version version) {
         LOGGER.debug("Externalizing version with uri {} and its references", version.getItem().getUri().toString());
-        List<Item> items = itemRepo.find(Item.Criteria
-                .create()
-                .interval(version.getInterval())
-                .reference(version.getItem().getUri(), ReferenceType.COMPOSITION)
-        );
-        LOGGER.info("Found {} reference(s) that also needs to be externalized", items.size());
-        List<Version> versions = items
+        List<Version> versions = dependencyRepo.findVersions(version.getItem(), version.getInterval())
                 .stream()
-                .flatMap(i -> i.getVersions(version.getInterval()).stream())
                 .filter(Version::hasComposition)
                 .filter(Version::isComplete)
                 .collect(Collectors.toList());
+        LOGGER.info("Found {} dependent version(s) that also needs to be externalized", versions.size());
 
         boolean defaultVisitor = getHighestPriorityExternalizationVisitorBean(version).map(Bean::getBeanClass).filter(DefaultExternalizationVisitor.class::equals).isPresent();
 
@@ -186,10 +286,10 @@ public class ExternalizerService {
         return map;
     }
 
-    private Map<MimeType.Match, Bean<?>> getMatchingExternalizationVisitorBeans(final Version version) {
+    private Map<MimeType.Match, Bean<?>> getMatchingExternalizationVisitorBeans(final MimeType mimeType) {
         Map<MimeType.Match, Bean<?>> matches = new EnumMap<>(MimeType.Match.class);
         externalizationVisitorBeans.forEach((key, value) -> {
-            MimeType.Match m = key.matches(version.getMimeType());
+            MimeType.Match m = key.matches(mimeType);
             if (m.isMatch()) {
                 matches.put(m, value);
             }
@@ -197,51 +297,84 @@ public class ExternalizerService {
         return matches;
     }
 
-    private Optional<Bean<?>> getHighestPriorityExternalizationVisitorBean(final Version version) {
-        return getMatchingExternalizationVisitorBeans(version).entrySet()
+    private Optional<Bean<?>> findHighestPriorityExternalizationVisitorBean(final MimeType mimeType) {
+        Optional<Bean<?>> bean = getMatchingExternalizationVisitorBeans(mimeType).entrySet()
                 .stream()
                 .sorted((e1, e2) -> Integer.compare(e2.getKey().getPriority(), e1.getKey().getPriority()))
                 .findFirst()
                 .map(Map.Entry::getValue);
+        LOGGER.debug("Resolved externalization visitor for mime type {}", mimeType);
+        return bean;
+    }
+
+    private Optional<Bean<?>> getHighestPriorityExternalizationVisitorBean(final Version version) {
+        return resolvedExternalizationVisitorBeans.computeIfAbsent(version.getMimeType(), this::findHighestPriorityExternalizationVisitorBean);
     }
 
-    private List<ExternalFile> externalizeVersion(final Version version) {
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<ExternalFile> externalizeVersion(final UUID uuid) {
+        Version version = itemRepo.getVersion(uuid);
         List<ExternalFile> results = new ArrayList<>(0);
-        if (processing(version.getUuid())) {
-            LOGGER.info("Version {} with uri {} has already been externalized", version.getUuid(), version.getItem().getUri());
-        } else {
-            LOGGER.info("Externalizing version {} with uri {}", version.getUuid(), version.getItem().getUri());
-            List<TemporalReferenceTree<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor>> trees = new ArrayList<>();
-            InjectableContentProcessingScope.execute(
-                    () -> trees.addAll(externalizeVersionInScope(version)),
-                    version.getContent());
-            LOGGER.debug("Found {} files to externalize", trees.size());
-            fileRepo.findByUri(version.getItem().getUri(), version.getInterval())
-                    .stream()
-                    .filter(f -> f.isDifferent(version))
-                    .sorted((v1, v2) -> v1.getItem().getUri().compareTo(v2.getItem().getUri()))
-                    .forEach(f -> {
-                        LOGGER.debug("Deleting file {}", f.getUuid());
-                        version.removeExternalizationId(f.getExternalizationId());
-                        f.delete();
-                    });
-
-            trees.stream()
-                    .map(t -> createExternalFile(t, version))
-                    .filter(f -> f.isDifferent(version))
-                    .forEach(f -> {
-                        LOGGER.debug("Saving file {}", f.getUuid());
-                        fileRepo.save(f);
-                        results.add(f);
-                    });
-
-            processed(version.getUuid());
-            scheduleService.reschedule();
-        }
+        LOGGER.info("Externalizing version {} with uri {}", version.getUuid(), version.getItem().getUri());
+        List<ExternalFile> existing = fileRepo.findByUri(version.getItem().getUri(), version.getInterval());
+        Set<ExternalFile> unchanged = new HashSet<>();
+        Set<ZonedDateTime> schedule = new HashSet<>();
+        List<TemporalReferenceTree<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor>> trees = new ArrayList<>();
+        InjectableContentProcessingScope.execute(
+                () -> trees.addAll(externalizeVersionInScope(version, (interval, versions) -> {
+                    Optional<ExternalFile> file = findExternalized(existing, version, interval, versions);
+                    file.ifPresent(unchanged::add);
+                    return !file.isPresent();
+                })),
+                version.getContent());
+        LOGGER.debug("Found {} files to externalize and {} unchanged files", trees.size(), unchanged.size());
+        existing.stream()
+                .filter(f -> !unchanged.contains(f))
+                .sorted((v1, v2) -> v1.getItem().getUri().compareTo(v2.getItem().getUri()))
+                .forEach(f -> {
+                    LOGGER.debug("Deleting file {}", f.getUuid());
+                    version.removeExternalizationId(f.getExternalizationId());
+                    f.delete();
+                    schedule.add(f.getInterval().getFrom());
+                    schedule.add(f.getInterval().getTo());
+                });
+
+        trees.stream()
+                .map(t -> createExternalFile(t, version))
+                .forEach(f -> {
+                    LOGGER.debug("Saving file {}", f.getUuid());
+                    fileRepo.save(f);
+                    version.addExternalizationId(f.getExternalizationId());
+                    results.add(f);
+                    schedule.add(f.getInterval().getFrom());
+                    schedule.add(f.getInterval().getTo());
+                });
+
+        scheduleService.schedule(schedule);
+        changed.fire(new ExternalFileCache.Changed(version.getItem().getUri(), schedule));
         return results;
     }
 
-    private List<TemporalReferenceTree<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor>> externalizeVersionInScope(final Version version) {
+    /**
+     * Find the file already externalized for a tree, i.e. a file with the same interval and an id computed from the
+     * same versions. The tree isn't externalized again, if the file exists.
+     *
+     * @param existing the files existing for the item of the version
+     * @param version the version at the root of the tree
+     * @param interval the interval of the tree
+     * @param versions the versions composed into the root version in the interval
+     * @return the file already externalized, or empty if the tree must be externalized
+     */
+    static Optional<ExternalFile> findExternalized(final List<ExternalFile> existing, final Version version, final Interval interval, final List<Version> versions) {
+        String id = ExternalizationIdentifierVisitor.getContentId(version, versions);
+        return existing.stream()
+                .filter(f -> id.equals(f.getExternalizationId()))
+                .filter(f -> f.getInterval().equals(interval))
+                .findFirst();
+    }
+
+    private List<TemporalReferenceTree<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor>> externalizeVersionInScope(final Version version,
+            final BiPredicate<Interval, List<Version>> filter) {
         List<TemporalReferenceTree<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor>> trees = new ArrayList<>();
         Optional<Bean<?>> bean = getHighestPriorityExternalizationVisitorBean(version);
         if (bean.isPresent()) {
@@ -252,7 +385,7 @@ public class ExternalizerService {
                     version.getMimeType());
             ReferenceProcessor<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor> processor
                     = new ReferenceProcessor<>(version, visitor);
-            trees.addAll(processor.process());
+            trees.addAll(processor.process(filter));
         } else {
             LOGGER.warn("No visitor found to externalizer version {} with mime type {}", version.getUuid(), version.getMimeType());
         }
@@ -262,7 +395,7 @@ public class ExternalizerService {
     private ExternalFile createExternalFile(final TemporalReferenceTree<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor> t, final Version version) {
         ExternalFile.Builder builder = ExternalFile.builder()
                 .item(version.getItem())
-                .content(t.getResult().getContent())
+                .content(itemRepo.saveContent(t.getResult().getContent()))
                 .interval(t.getInterval())
                 .externalizationId(t.getResult().getId())
                 .state(version.getState());
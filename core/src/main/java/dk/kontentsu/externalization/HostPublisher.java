@@ -0,0 +1,627 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.externalization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.Host;
+import dk.kontentsu.repository.ItemRepository;
+import dk.kontentsu.util.DelTreeFileVisitor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Publishes external files to the directory of a host. Files already on disk with the same content are not written
+ * again, and files on disk not being published are deleted.
+ *
+ * To avoid reading files on disk to check if they have changed, a manifest with the hash, size and modification time
+ * of the files written is shared between publications.
+ *
+ * Files are written by other threads than the one creating the publisher, so the content of the files is read when
+ * the publisher is created, with the data copied in a transaction of its own for each file.
+ *
+ * When publishing staged, the host path is a symbolic link to the current generation of files. A new generation is
+ * written to a staging directory next to the host path, with unchanged files hard linked from the current generation,
+ * and the link is then replaced atomically, so readers never see a partially published host. If any file can't be
+ * written, the staged generation is discarded and the host is left at the current generation. A host directory not yet
+ * published staged is kept in place until the first generation has been written, and is then moved to the generations
+ * directory just before the host path is replaced by the link.
+ *
+ * When publishing a delta, only the given files are written and the removed files are deleted, leaving all other files
+ * on the host as they are.
+ *
+ * Textual files can also be published as gzip compressed copies next to the files, which are published, skipped and
+ * deleted along with the files.
+ *
+ * @author Jens Borch Christiansen
+ */
+final class HostPublisher {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String GENERATIONS = ".generations";
+    private static final String INITIAL_GENERATION = "initial";
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final AtomicLong GENERATION_COUNTER = new AtomicLong();
+
+    private final Host host;
+    private final Map<Path, Snapshot> files = new HashMap<>();
+    private final Set<Path> removed = new HashSet<>();
+    private final Set<Path> compressed = new HashSet<>();
+    private final boolean delta;
+    private final Map<Path, Manifest> manifest;
+    private final ItemRepository itemRepo;
+
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private long duration;
+    private boolean failed;
+
+    HostPublisher(final Host host, final Collection<ExternalFile> files, final Map<Path, Manifest> manifest, final ItemRepository itemRepo) {
+        this.host = host;
+        this.manifest = manifest;
+        this.itemRepo = itemRepo;
+        this.delta = false;
+        files.forEach(f -> this.files.put(f.resolvePath(host.getPath()), new Snapshot(f)));
+    }
+
+    HostPublisher(final Host host, final Collection<ExternalFile> files, final Collection<ExternalFile> removed, final Map<Path, Manifest> manifest,
+            final ItemRepository itemRepo) {
+        this.host = host;
+        this.manifest = manifest;
+        this.itemRepo = itemRepo;
+        this.delta = true;
+        files.forEach(f -> this.files.put(f.resolvePath(host.getPath()), new Snapshot(f)));
+        removed.forEach(f -> this.removed.add(f.resolvePath(host.getPath())));
+        this.removed.removeAll(this.files.keySet());
+    }
+
+    /**
+     * Also publish a gzip compressed copy of each textual file, with the extension .gz added to the file name.
+     */
+    HostPublisher compressed() {
+        new HashMap<>(files).forEach((path, f) -> {
+            if (f.text) {
+                Path gz = toCompressed(path);
+                files.put(gz, f);
+                compressed.add(gz);
+            }
+        });
+        new HashSet<>(removed).forEach(p -> removed.add(toCompressed(p)));
+        return this;
+    }
+
+    static Path toCompressed(final Path path) {
+        return path.resolveSibling(path.getFileName() + GZIP_EXTENSION);
+    }
+
+    HostPublisher publish() {
+        return publish(Runnable::run, Integer.MAX_VALUE).join();
+    }
+
+    /**
+     * Publish the files in batches written in parallel by the executor. The returned future never fails, as errors are
+     * logged and reported by {@link #isFailed()}, so a host failing does not affect publishing to other hosts. Files
+     * that can't be written don't stop other files from being written, but the host is reported as failed.
+     */
+    CompletableFuture<HostPublisher> publish(final Executor executor, final int batchSize) {
+        long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(delta ? this::deleteRemoved : this::deleteAll, executor)
+                .thenCompose(existing -> write(executor, batchSize, (path, file) -> {
+                    BasicFileAttributes attrs = existing.get(path);
+                    if (attrs != null && isUnchanged(file, path, path, attrs)) {
+                        LOGGER.debug("Skipping unchanged file: {}", path);
+                        skipped.incrementAndGet();
+                    } else {
+                        publish(file, path, path);
+                    }
+                }))
+                .handle((v, ex) -> completed(start, ex, "Published files to host {}: {} written, {} skipped, {} deleted in {} ms"));
+    }
+
+    HostPublisher publishStaged() {
+        return publishStaged(Runnable::run, Integer.MAX_VALUE).join();
+    }
+
+    /**
+     * Publish the files as a new generation in a staging directory and switch the host path to it atomically, once all
+     * batches have been written in parallel by the executor. Only the current and the previous generation are kept.
+     */
+    CompletableFuture<HostPublisher> publishStaged(final Executor executor, final int batchSize) {
+        long start = System.nanoTime();
+        Path root = host.getPath();
+        Path generations = root.resolveSibling(root.getFileName() + GENERATIONS);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Path current = current(root, generations);
+                Path staging = Files.createDirectory(generations.resolve(System.currentTimeMillis() + "-" + GENERATION_COUNTER.incrementAndGet()));
+                return new Generation(current, staging, (current == null) ? new HashMap<>() : scan(root, current, staging));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, executor).thenCompose(generation -> write(executor, batchSize, (path, file) -> {
+            Path relative = root.relativize(path);
+            Path target = generation.staging.resolve(relative.toString());
+            BasicFileAttributes attrs = generation.existing.get(path);
+            Path previous = (attrs == null) ? null : generation.current.resolve(relative.toString());
+            if (previous != null && isUnchanged(file, path, previous, attrs) && link(previous, target)) {
+                LOGGER.debug("Linking unchanged file: {}", path);
+                skipped.incrementAndGet();
+            } else {
+                publish(file, target, path);
+            }
+        }).handle((v, ex) -> {
+            if (ex != null || errors.get() > 0) {
+                discard(generation.staging);
+                throw new UncheckedIOException(new IOException("Unable to write all files to staged generation " + generation.staging, ex));
+            }
+            Path previous = generation.current;
+            try {
+                if (root.equals(previous)) {
+                    previous = flipInitial(root, generations, generation.staging);
+                } else {
+                    flip(root, generation.staging);
+                }
+            } catch (IOException e) {
+                discard(generation.staging);
+                throw new UncheckedIOException(e);
+            }
+            try {
+                prune(generations, previous, generation.staging);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return v;
+        })).handle((v, ex) -> completed(start, ex, "Published staged files to host {}: {} written, {} linked, {} deleted in {} ms"));
+    }
+
+    private CompletableFuture<Void> write(final Executor executor, final int batchSize, final BiConsumer<Path, Snapshot> action) {
+        List<Map.Entry<Path, Snapshot>> entries = new ArrayList<>(files.entrySet());
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i += batchSize) {
+            List<Map.Entry<Path, Snapshot>> batch = entries.subList(i, Math.min(entries.size(), i + batchSize));
+            batches.add(CompletableFuture.runAsync(() -> batch.forEach(e -> action.accept(e.getKey(), e.getValue())), executor));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()]));
+    }
+
+    private HostPublisher completed(final long start, final Throwable ex, final String message) {
+        duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (ex != null) {
+            failed = true;
+            LOGGER.error("Unable to publish files to host " + host.getName(), ex);
+        } else if (errors.get() > 0) {
+            failed = true;
+            LOGGER.error("Unable to write {} files to host {}", errors.get(), host.getName());
+        }
+        LOGGER.info(message, host.getName(), written.get(), skipped.get(), deleted.get(), duration);
+        return this;
+    }
+
+    Host getHost() {
+        return host;
+    }
+
+    int getWritten() {
+        return written.get();
+    }
+
+    int getSkipped() {
+        return skipped.get();
+    }
+
+    int getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * @return time in milliseconds spent publishing
+     */
+    long getDuration() {
+        return duration;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Delete all files on the host not in the set of files to publish, walking the host directory once. Directories
+     * not containing any files to publish are deleted without checking the individual files. If the host path is a
+     * symbolic link, e.g. to a generation published staged, the directory it links to is walked.
+     *
+     * @return the attributes of the files on disk that are published
+     */
+    private Map<Path, BasicFileAttributes> deleteAll() {
+        Path root = host.getPath();
+        Path real;
+        try {
+            real = Files.isSymbolicLink(root) ? root.toRealPath() : root;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        Set<Path> directories = new HashSet<>();
+        files.keySet().forEach(p -> {
+            Path dir = p.getParent();
+            while (dir != null && directories.add(dir) && !dir.equals(root)) {
+                dir = dir.getParent();
+            }
+        });
+        Map<Path, BasicFileAttributes> existing = new HashMap<>();
+        try {
+            Files.walkFileTree(real, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                    Path path = root.resolve(real.relativize(dir).toString());
+                    if (dir.equals(real) || directories.contains(path)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    LOGGER.debug("Deleting directory {}", path);
+                    deleteTree(path);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    Path path = root.resolve(real.relativize(file).toString());
+                    if (files.containsKey(path)) {
+                        existing.put(path, attrs);
+                    } else {
+                        delete(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            LOGGER.error("Unable to walk file tree for filesystem with path " + root.toString(), ex);
+        }
+        return existing;
+    }
+
+    /**
+     * Find the generation the host path currently links to. A host directory not yet published staged is itself the
+     * current generation, and is left in place until the staged generation has been written.
+     */
+    private static Path current(final Path root, final Path generations) throws IOException {
+        Files.createDirectories(generations);
+        if (Files.isSymbolicLink(root)) {
+            Path current = root.resolveSibling(Files.readSymbolicLink(root));
+            return Files.isDirectory(current) ? current : null;
+        } else if (Files.isDirectory(root)) {
+            return root;
+        }
+        return null;
+    }
+
+    /**
+     * Find the attributes of the files in the current generation being published again. Files not published again are
+     * only counted as deleted, as the generation is left untouched for readers still using it. When publishing a delta,
+     * files neither published nor removed are linked into the staged generation.
+     *
+     * @return the attributes of the files in the current generation that are published, keyed by path on the host
+     */
+    private Map<Path, BasicFileAttributes> scan(final Path root, final Path current, final Path staging) throws IOException {
+        Map<Path, BasicFileAttributes> existing = new HashMap<>();
+        Files.walkFileTree(current, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Path relative = current.relativize(file);
+                Path path = root.resolve(relative.toString());
+                if (files.containsKey(path)) {
+                    existing.put(path, attrs);
+                } else if (delta && !removed.contains(path)) {
+                    Path target = staging.resolve(relative.toString());
+                    if (!link(file, target)) {
+                        Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                } else {
+                    manifest.remove(path);
+                    deleted.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return existing;
+    }
+
+    private static boolean link(final Path existing, final Path target) {
+        try {
+            Files.createDirectories(target.getParent());
+            Files.createLink(target, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.warn("Unable to link file {}, writing it instead", existing, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Point the host path to the staged generation by renaming a new symbolic link over it, which is atomic.
+     */
+    private static void flip(final Path root, final Path staging) throws IOException {
+        Path link = root.resolveSibling(root.getFileName() + ".tmp");
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, staging.toAbsolutePath());
+        Files.move(link, root, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Move a host directory not yet published staged to the generations directory and point the host path to the
+     * staged generation. This is the only time readers can see the host path missing, and the directory is moved back
+     * if the link can't be created.
+     *
+     * @return the previous generation, i.e. the moved host directory
+     */
+    private static Path flipInitial(final Path root, final Path generations, final Path staging) throws IOException {
+        Path initial = generations.resolve(INITIAL_GENERATION);
+        if (Files.exists(initial)) {
+            Files.walkFileTree(initial, new DelTreeFileVisitor());
+        }
+        LOGGER.warn("Moving host directory {} to {} to publish staged", root, initial);
+        Files.move(root, initial);
+        try {
+            flip(root, staging);
+        } catch (IOException ex) {
+            try {
+                Files.move(initial, root);
+            } catch (IOException e) {
+                ex.addSuppressed(e);
+            }
+            throw ex;
+        }
+        return initial;
+    }
+
+    private static void discard(final Path staging) {
+        try {
+            LOGGER.warn("Discarding staged generation {}", staging);
+            Files.walkFileTree(staging, new DelTreeFileVisitor());
+        } catch (IOException ex) {
+            LOGGER.error("Unable to delete staged generation " + staging, ex);
+        }
+    }
+
+    private static void prune(final Path generations, final Path previous, final Path current) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(generations)) {
+            for (Path generation : stream) {
+                if (!generation.equals(current) && (previous == null || !Files.isSameFile(generation, previous))) {
+                    LOGGER.debug("Deleting old generation {}", generation);
+                    Files.walkFileTree(generation, new DelTreeFileVisitor());
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the removed files on the host.
+     *
+     * @return the attributes of the files on disk that are published
+     */
+    private Map<Path, BasicFileAttributes> deleteRemoved() {
+        removed.stream()
+                .filter(Files::exists)
+                .forEach(this::delete);
+        Map<Path, BasicFileAttributes> existing = new HashMap<>();
+        files.keySet().stream()
+                .filter(Files::isRegularFile)
+                .forEach(p -> {
+                    try {
+                        existing.put(p, Files.readAttributes(p, BasicFileAttributes.class));
+                    } catch (IOException ex) {
+                        LOGGER.debug("Unable to read attributes of published file {}", p, ex);
+                    }
+                });
+        return existing;
+    }
+
+    private void deleteTree(final Path dir) throws IOException {
+        try (Stream<Path> walker = Files.walk(dir)) {
+            walker.sorted(Comparator.reverseOrder()).forEach(p -> {
+                if (Files.isDirectory(p)) {
+                    manifest.remove(p);
+                    deleteQuietly(p);
+                } else {
+                    delete(p);
+                }
+            });
+        }
+    }
+
+    private void delete(final Path path) {
+        manifest.remove(path);
+        if (deleteQuietly(path)) {
+            deleted.incrementAndGet();
+        }
+    }
+
+    private static boolean deleteQuietly(final Path path) {
+        try {
+            Files.delete(path);
+            return true;
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to delete file with path {}", path.toString());
+            return false;
+        }
+    }
+
+    private boolean isUnchanged(final Snapshot file, final Path hostPath, final Path path, final BasicFileAttributes attrs) {
+        String hash = file.hash;
+        Manifest m = manifest.get(hostPath);
+        if (m != null && m.matches(hash, attrs)) {
+            return true;
+        }
+        try (InputStream in = open(hostPath, path)) {
+            if (hash.equals(Content.hash(in))) {
+                manifest.put(hostPath, new Manifest(hash, attrs));
+                return true;
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to read published file {}", path, ex);
+        }
+        return false;
+    }
+
+    /**
+     * Open a published file, decompressing compressed copies so they can be compared with the content.
+     */
+    private InputStream open(final Path hostPath, final Path path) throws IOException {
+        InputStream in = Files.newInputStream(path);
+        if (!compressed.contains(hostPath)) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    private void publish(final Snapshot f, final Path filePath, final Path hostPath) {
+        try {
+            LOGGER.debug("Saving content to: " + filePath.toString());
+            if (filePath.getParent() != null) {
+                Files.createDirectories(filePath.getParent());
+            }
+            // Never write through an existing hard link to a stored or previously published file
+            Files.deleteIfExists(filePath);
+            boolean gzip = compressed.contains(hostPath);
+            Optional<Path> stored = gzip ? Optional.empty() : Optional.ofNullable(f.stored);
+            if (!stored.isPresent() || !link(stored.get(), filePath)) {
+                try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    if (gzip) {
+                        itemRepo.copyCompressedContent(f.uuid, channel);
+                    } else {
+                        long copied = itemRepo.copyContent(f.uuid, channel);
+                        if (copied != f.size) {
+                            throw new IOException("Only " + copied + " of " + f.size + " bytes of content " + f.uuid + " copied");
+                        }
+                    }
+                }
+            }
+            manifest.put(hostPath, new Manifest(f.hash, Files.readAttributes(filePath, BasicFileAttributes.class)));
+            written.incrementAndGet();
+        } catch (IOException ex) {
+            manifest.remove(hostPath);
+            errors.incrementAndGet();
+            LOGGER.error("Failed to write CDN file: " + filePath.toString(), ex);
+        }
+    }
+
+    /**
+     * Current and staged generation of files, with the attributes of the files in the current generation.
+     */
+    private static final class Generation {
+
+        private final Path current;
+        private final Path staging;
+        private final Map<Path, BasicFileAttributes> existing;
+
+        Generation(final Path current, final Path staging, final Map<Path, BasicFileAttributes> existing) {
+            this.current = current;
+            this.staging = staging;
+            this.existing = existing;
+        }
+
+    }
+
+    /**
+     * Content of an external file to publish, read before the file is written by another thread.
+     */
+    private static final class Snapshot {
+
+        private final UUID uuid;
+        private final String hash;
+        private final long size;
+        private final Path stored;
+        private final boolean text;
+
+        Snapshot(final ExternalFile file) {
+            Content content = file.getContent();
+            this.uuid = content.getUuid();
+            this.hash = content.getHash();
+            this.size = content.getSize();
+            this.stored = content.getPath().orElse(null);
+            this.text = file.getMimeType().isText();
+        }
+
+    }
+
+    /**
+     * Hash, size and modification time of a published file.
+     */
+    static final class Manifest {
+
+        private final String hash;
+        private final long size;
+        private final FileTime modified;
+
+        Manifest(final String hash, final BasicFileAttributes attrs) {
+            this.hash = hash;
+            this.size = attrs.size();
+            this.modified = attrs.lastModifiedTime();
+        }
+
+        boolean matches(final String hash, final BasicFileAttributes attrs) {
+            return this.hash.equals(hash) && size == attrs.size() && Objects.equals(modified, attrs.lastModifiedTime());
+        }
+
+    }
+
+}
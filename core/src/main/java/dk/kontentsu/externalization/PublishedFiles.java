@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.externalization;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.Host;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The files published to hosts, as recorded in the manifest of the publications. Used to find files published to
+ * hosts in the local file system, so current content can be served directly from disk.
+ *
+ * Kept outside the scheduler, so lookups are not blocked while files are being published.
+ *
+ * @author Jens Borch Christiansen
+ */
+@ApplicationScoped
+public class PublishedFiles {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final Map<Path, HostPublisher.Manifest> manifest = new ConcurrentHashMap<>();
+
+    private final Set<Path> roots = ConcurrentHashMap.newKeySet();
+
+    Map<Path, HostPublisher.Manifest> getManifest() {
+        return manifest;
+    }
+
+    void add(final Host host) {
+        Path root = host.getPath();
+        if (root.getFileSystem().equals(FileSystems.getDefault())) {
+            roots.add(root);
+        }
+    }
+
+    /**
+     * Find the file published with the content of the given external file on a host in the local file system. The
+     * file is only returned if it is unchanged since it was published.
+     *
+     * @param file the external file to find the published file for
+     * @return the path to the published file, if any
+     */
+    public Optional<Path> find(final ExternalFile file) {
+        return find(file, Function.identity());
+    }
+
+    /**
+     * Find the gzip compressed copy published with the content of the given external file on a host in the local file
+     * system. The copy is only returned if it is unchanged since it was published.
+     *
+     * @param file the external file to find the compressed copy for
+     * @return the path to the compressed copy, if any
+     */
+    public Optional<Path> findCompressed(final ExternalFile file) {
+        return find(file, HostPublisher::toCompressed);
+    }
+
+    private Optional<Path> find(final ExternalFile file, final Function<Path, Path> variant) {
+        Optional<String> hash = file.getContent().findHash();
+        if (!hash.isPresent()) {
+            return Optional.empty();
+        }
+        return roots.stream()
+                .map(file::resolvePath)
+                .map(variant)
+                .filter(p -> isPublished(p, hash.get()))
+                .findFirst();
+    }
+
+    private boolean isPublished(final Path path, final String hash) {
+        HostPublisher.Manifest m = manifest.get(path);
+        if (m == null) {
+            return false;
+        }
+        try {
+            return m.matches(hash, Files.readAttributes(path, BasicFileAttributes.class));
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to read attributes of published file {}", path, ex);
+            return false;
+        }
+    }
+
+}
@@ -23,166 +23,291 @@
  */
 package dk.kontentsu.externalization;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.time.LocalDateTime;
-import java.time.Month;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Stream;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.ejb.Asynchronous;
-import javax.ejb.ScheduleExpression;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.NoSuchObjectLocalException;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.ejb.Timeout;
 import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
 import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.inject.Inject;
 
+import dk.kontentsu.configuration.Config;
 import dk.kontentsu.model.ExternalFile;
 import dk.kontentsu.model.Host;
+import dk.kontentsu.model.Item;
 import dk.kontentsu.repository.ExternalFileRepository;
+import dk.kontentsu.repository.ItemRepository;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Scheduler for publishing externalized content.
  *
+ * Upcoming publishing times are kept in a queue, with a single non-persistent timer for the earliest of them. The
+ * queue is rebuilt from the database on startup.
+ *
+ * If enabled, only files changed since the last publication are published, with all files being published
+ * periodically to reconcile the hosts.
+ *
+ * Methods only take the container's read lock, so times can be scheduled while files are published. The schedule and
+ * the timer are guarded by the lock on the schedule, and publications are serialized by synchronizing on the service,
+ * which also guards the state of the last publication.
+ *
  * @author Jens Borch Christiansen
  */
 @Singleton
 @Startup
+@Lock(LockType.READ)
 public class ScheduledExternalizerService {
 
     private static final int START_OFFSET = 2;
     private static final Logger LOGGER = LogManager.getLogger();
 
-    private final AtomicBoolean first = new AtomicBoolean(true);
+    private final NavigableSet<ZonedDateTime> schedule = new TreeSet<>(Comparator.comparing(ZonedDateTime::toInstant));
 
     @Resource
     private TimerService timerService;
 
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
     @Inject
     private ExternalFileRepository fileRepo;
 
-    @Asynchronous
-    public void reschedule() {
-        Set<ZonedDateTime> schedule = fileRepo.getSchedule();
-        reschedule(schedule);
-    }
+    @Inject
+    private ItemRepository itemRepo;
 
-    private void reschedule(final Set<ZonedDateTime> schedule) {
-        if (first.getAndSet(false)) {
-            ZonedDateTime now = ZonedDateTime.now().plusMinutes(START_OFFSET);
-            if (!schedule.contains(now)) {
-                schedule.add(now);
-            }
-        }
+    @Inject
+    private Config config;
+
+    @Inject
+    private PublishedFiles publishedFiles;
+
+    private ExecutorService pool;
+
+    private Timer next;
 
-        ScheduleExpression expression = new ScheduleExpression();
-        for (ZonedDateTime dateTime : schedule) {
+    private ZonedDateTime published;
 
-            ZonedDateTime t = dateTime.withZoneSameInstant(ZoneId.systemDefault());
-            LOGGER.info("Files will be published at: " + t.format(DateTimeFormatter.ISO_DATE_TIME));
-            expression
-                    .second(t.getSecond())
-                    .minute(t.getMinute())
-                    .hour(t.getHour())
-                    .dayOfMonth(t.getDayOfMonth())
-                    .month(t.getMonthValue())
-                    .year(t.getYear());
+    private ZonedDateTime publishedAt;
 
-            timerService.createCalendarTimer(expression);
+    private ZonedDateTime reconciled;
+
+    @PostConstruct
+    public void init() {
+        LOGGER.info("Using {} threads for publishing", config.externalizationPublishPoolSize());
+        pool = Executors.newFixedThreadPool(config.externalizationPublishPoolSize(), threadFactory);
+        timerService.getTimers().forEach(Timer::cancel);
+        synchronized (schedule) {
+            schedule.addAll(fileRepo.getSchedule());
+            schedule.add(ZonedDateTime.now().plusMinutes(START_OFFSET));
+            arm();
         }
     }
 
-    @Timeout
-    @SuppressWarnings("PMD.UseConcurrentHashMap")
-    public void execute(final Timer timer) {
-        ZonedDateTime time = getZonedDateTimeFromExpression(timer.getSchedule());
-        LOGGER.info("Publishing externalised files available at: {}", time.format(DateTimeFormatter.ISO_DATE_TIME));
-        List<ExternalFile> all = fileRepo.findAll(time);
-        LOGGER.info("Found {} files to publish", all.size());
-        Map<Host, Set<ExternalFile>> filesMap = new HashMap<>();
-        all.forEach(f
-                -> f.getItem().getHosts().forEach(h -> {
-                    filesMap.putIfAbsent(h, new HashSet<>());
-                    filesMap.get(h).add(f);
-                })
-        );
+    @PreDestroy
+    public void destroy() {
+        pool.shutdown();
+    }
 
-        filesMap.forEach((host, files) -> {
-            deleteAll(host, files);
-            publishAll(host, files);
-        });
+    /**
+     * Add publishing times to the schedule. Times already scheduled or in the past are ignored, and the timer is only
+     * replaced if the next publishing time changes.
+     *
+     * @param times the times files should be published at
+     */
+    @Asynchronous
+    public void schedule(final Collection<ZonedDateTime> times) {
+        ZonedDateTime now = ZonedDateTime.now();
+        synchronized (schedule) {
+            times.stream()
+                    .filter(t -> t.isAfter(now))
+                    .forEach(schedule::add);
+            arm();
+        }
     }
 
-    private void deleteAll(final Host host, final Set<ExternalFile> files) {
-        try (Stream<Path> walker = Files.walk(host.getPath())) {
-            walker.filter(p -> p.toFile().isFile()).forEach(fsPath -> {
-                if (files.stream().map(f -> f.resolvePath(host.getPath())).noneMatch(p -> p.equals(fsPath))) {
-                    delete(fsPath);
-                }
-            });
-        } catch (IOException ex) {
-            LOGGER.error("Unable to walk file tree for filesystem with path " + host.getPath().toString(), ex);
+    /**
+     * Make sure the timer is set to the next publishing time. Publishing times closer than the minimum scheduling
+     * interval to a following time are skipped, as the following publication will include the files. Must be called
+     * holding the lock on the schedule.
+     */
+    private void arm() {
+        ZonedDateTime time = null;
+        for (ZonedDateTime t : schedule) {
+            if (time != null && !time.plusMinutes(ExternalFileRepository.MIN_SCHEDULING_INTERVAL).isAfter(t)) {
+                break;
+            }
+            time = t;
+        }
+        ZonedDateTime current = getScheduledTime(next);
+        if (time == null || (current != null && current.toInstant().equals(time.toInstant()))) {
+            return;
         }
+        if (next != null) {
+            cancel(next);
+        }
+        LOGGER.info("Files will be published at: {}", time.withZoneSameInstant(ZoneId.systemDefault()).format(DateTimeFormatter.ISO_DATE_TIME));
+        next = timerService.createSingleActionTimer(Date.from(time.toInstant()), new TimerConfig(time, false));
     }
 
-    private void delete(final Path path) {
+    private static void cancel(final Timer timer) {
         try {
-            Files.delete(path);
-        } catch (IOException ex) {
-            LOGGER.warn("Unable to delete file with path {}", path.toString());
+            timer.cancel();
+        } catch (NoSuchObjectLocalException ex) {
+            LOGGER.debug("Timer already expired", ex);
         }
     }
 
-    private void publishAll(final Host host, final Set<ExternalFile> files) {
-        files.forEach(f -> publish(f, host.getPath()));
+    private static ZonedDateTime getScheduledTime(final Timer timer) {
+        try {
+            return (timer == null) ? null : (ZonedDateTime) timer.getInfo();
+        } catch (NoSuchObjectLocalException ex) {
+            return null;
+        }
     }
 
-    private void publish(final ExternalFile f, final Path hostPath) {
-        Path filePath = f.resolvePath(hostPath);
-        try {
-            LOGGER.debug("Saving content to: " + filePath.toString());
-            if (hasParent(filePath)) {
-                Files.createDirectories(filePath.getParent());
-            }
-            if (!filePath.toFile().exists()) {
-                Files.createFile(filePath);
+    /**
+     * Publish the files available at the time of the timer. The files are found using short read transactions in the
+     * repository, so no transaction is held while the files are written.
+     *
+     * @param timer the timer expired
+     */
+    @Timeout
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void execute(final Timer timer) {
+        ZonedDateTime time = (ZonedDateTime) timer.getInfo();
+        synchronized (schedule) {
+            schedule.headSet(time, true).clear();
+            next = null;
+            arm();
+        }
+        publish(time);
+    }
+
+    /**
+     * Publish files and wait for all hosts to finish. Publications are serialized, as each publication depends on the
+     * previous one when only changed files are published.
+     */
+    private synchronized void publish(final ZonedDateTime time) {
+        ZonedDateTime now = ZonedDateTime.now();
+        boolean full = !config.externalizationPublishDelta()
+                || published == null
+                || reconciled == null
+                || !reconciled.plusMinutes(config.externalizationPublishReconcileMinutes()).isAfter(now);
+        LOGGER.info("Publishing {} externalised files available at: {}", full ? "all" : "changed", time.format(DateTimeFormatter.ISO_DATE_TIME));
+        List<HostPublisher> publishers = full ? findAll(time) : findChanged(time);
+        publishers.forEach(p -> publishedFiles.add(p.getHost()));
+        if (config.externalizationPublishCompressed()) {
+            publishers.forEach(HostPublisher::compressed);
+        }
+
+        long start = System.nanoTime();
+        int batchSize = config.externalizationPublishBatchSize();
+        List<CompletableFuture<HostPublisher>> futures = publishers.stream()
+                .map(p -> config.externalizationPublishStaged() ? p.publishStaged(pool, batchSize) : p.publish(pool, batchSize))
+                .collect(Collectors.toList());
+        List<String> failed = futures.stream()
+                .map(CompletableFuture::join)
+                .filter(HostPublisher::isFailed)
+                .map(p -> p.getHost().getName())
+                .collect(Collectors.toList());
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (failed.isEmpty()) {
+            LOGGER.info("Published files to {} hosts in {} ms", publishers.size(), duration);
+            published = time;
+            publishedAt = now;
+            if (full) {
+                reconciled = now;
             }
-            Files.copy(f.getContent().getDataAsBinaryStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException ex) {
-            LOGGER.error("Failed to write CDN file: " + filePath.toString(), ex);
+        } else {
+            LOGGER.error("Published files to {} hosts in {} ms, failed hosts: {}", publishers.size(), duration, failed);
+            published = null;
         }
     }
 
-    private boolean hasParent(final Path file) {
-        Path parent = file.getParent();
-        return parent != null && !parent.toFile().exists();
+    @SuppressWarnings("PMD.UseConcurrentHashMap")
+    private List<HostPublisher> findAll(final ZonedDateTime time) {
+        List<ExternalFile> all = fileRepo.findAll(time);
+        LOGGER.info("Found {} files to publish", all.size());
+        Map<Host, Set<ExternalFile>> filesMap = new HashMap<>();
+        all.forEach(f
+                -> f.getItem().getHosts().forEach(h -> {
+                    filesMap.putIfAbsent(h, new HashSet<>());
+                    filesMap.get(h).add(f);
+                })
+        );
+        return filesMap.entrySet().stream()
+                .map(e -> new HostPublisher(e.getKey(), e.getValue(), publishedFiles.getManifest(), itemRepo))
+                .collect(Collectors.toList());
     }
 
-    private ZonedDateTime getZonedDateTimeFromExpression(final ScheduleExpression expression) {
-        return ZonedDateTime.of(LocalDateTime
-                .of(
-                        Integer.parseInt(expression.getYear()),
-                        Month.of(Integer.parseInt(expression.getMonth())),
-                        Integer.parseInt(expression.getDayOfMonth()),
-                        Integer.parseInt(expression.getHour()),
-                        Integer.parseInt(expression.getMinute()),
-                        Integer.parseInt(expression.getSecond())),
-                ZoneId.systemDefault());
+    /**
+     * Find the files to publish and remove since the last publication. For each item with files starting, ending or
+     * changed since then, the file available at the given time is published, or the item is removed if there is none.
+     */
+    @SuppressWarnings("PMD.UseConcurrentHashMap")
+    private List<HostPublisher> findChanged(final ZonedDateTime time) {
+        List<ExternalFile> changed = fileRepo.findChanged(published, time, publishedAt);
+        LOGGER.info("Found {} changed files since {}", changed.size(), published.format(DateTimeFormatter.ISO_DATE_TIME));
+        Map<Item, ExternalFile> available = new HashMap<>();
+        Map<Item, ExternalFile> removed = new HashMap<>();
+        changed.stream()
+                .filter(f -> f.isActivate() && f.getInterval().includes(time))
+                .forEach(f -> available.put(f.getItem(), f));
+        changed.stream()
+                .filter(f -> !available.containsKey(f.getItem()))
+                .forEach(f -> removed.putIfAbsent(f.getItem(), f));
+        removed.keySet().removeIf(item -> {
+            Optional<ExternalFile> file = fileRepo.findByUri(item.getUri(), time);
+            file.ifPresent(f -> available.put(item, f));
+            return file.isPresent();
+        });
+
+        Map<Host, Set<ExternalFile>> filesMap = new HashMap<>();
+        Map<Host, Set<ExternalFile>> removedMap = new HashMap<>();
+        available.forEach((item, f) -> item.getHosts().forEach(h -> filesMap.computeIfAbsent(h, k -> new HashSet<>()).add(f)));
+        removed.forEach((item, f) -> item.getHosts().forEach(h -> removedMap.computeIfAbsent(h, k -> new HashSet<>()).add(f)));
+        Set<Host> hosts = new HashSet<>(filesMap.keySet());
+        hosts.addAll(removedMap.keySet());
+        return hosts.stream()
+                .map(h -> new HostPublisher(h,
+                        filesMap.getOrDefault(h, Collections.emptySet()),
+                        removedMap.getOrDefault(h, Collections.emptySet()),
+                        publishedFiles.getManifest(),
+                        itemRepo))
+                .collect(Collectors.toList());
     }
 
 }
@@ -23,16 +23,26 @@
  */
 package dk.kontentsu.model;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.sql.Blob;
+import java.sql.SQLException;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.enterprise.inject.Alternative;
 import javax.persistence.Basic;
@@ -45,26 +55,56 @@ import javax.persistence.Id;
 import javax.persistence.Lob;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.sql.rowset.serial.SerialBlob;
 import javax.validation.constraints.NotNull;
 
+import dk.kontentsu.configuration.Config;
 import dk.kontentsu.repository.Repository;
+import dk.kontentsu.store.ContentStore;
+import dk.kontentsu.util.GzipCompressingInputStream;
+import org.aeonbits.owner.ConfigCache;
 
 /**
  * Container for the content distributed to the CDN server.
  *
+ * Content is addressed by the hash of its data, so versions and external files with identical data share the same
+ * content. Content no longer referenced by any version or external file is deleted by the
+ * {@link dk.kontentsu.repository.ContentSweeper}.
+ *
+ * When a {@link ContentStore} is configured, the data is kept in the store when the content is persisted, and the
+ * database only holds the metadata and the hash of the content.
+ *
  * @author Jens Borch Christiansen
  */
 @Alternative
 @Entity
-@Table(name = "content")
+@Table(name = "content",
+        uniqueConstraints = {
+            @UniqueConstraint(columnNames = {"hash", "encoding"}, name = "content_hash_constraint")})
 @NamedQueries({
     @NamedQuery(name = Repository.CONTENT_GET,
-            query = "SELECT c FROM Content c WHERE c.uuid = :uuid")})
+            query = "SELECT c FROM Content c WHERE c.uuid = :uuid"),
+    @NamedQuery(name = Repository.CONTENT_FIND_BY_HASH,
+            query = "SELECT c FROM Content c "
+            + "WHERE c.hash = :hash "
+            + "AND ((:encoding IS NULL AND c.encoding IS NULL) OR c.encoding = :encoding) "
+            + "ORDER BY c.id"),
+    @NamedQuery(name = Repository.CONTENT_GET_HASH,
+            query = "SELECT c.hash FROM Content c WHERE c.uuid = :uuid"),
+    @NamedQuery(name = Repository.CONTENT_FIND_UNREFERENCED,
+            query = "SELECT c FROM Content c "
+            + "WHERE NOT EXISTS (SELECT v FROM Version v WHERE v.content = c) "
+            + "AND NOT EXISTS (SELECT f FROM ExternalFile f WHERE f.content = c)"),
+    @NamedQuery(name = Repository.CONTENT_COUNT_BY_HASH,
+            query = "SELECT COUNT(c) FROM Content c WHERE c.hash = :hash")})
 public class Content implements Serializable {
 
     private static final long serialVersionUID = 2169103680138791403L;
-    private static final String HASH_ALGORITHM = "MD5";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 8192;
 
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -76,31 +116,85 @@ public class Content implements Serializable {
     private UUID uuid;
 
     @Lob
-    @NotNull
     @Basic(fetch = FetchType.LAZY)
     @Column(name = "data", length = 1073741824)
-    private byte[] data;
+    private Blob data;
 
-    @Column(name = "hash", length = 32)
+    @Column(name = "hash", length = 64)
     private String hash;
 
+    @Column(name = "data_size")
+    private Long size;
+
     @Column(name = "encoding", length = 50)
     private String encoding;
 
-
+    @Column(name = "compressed")
+    private boolean compressed;
 
     protected Content() {
         //Needed by JPA
     }
 
-
     public Content(final byte[] content, final Charset encoding) {
+        this(content, encoding, isCompressible(encoding));
+    }
+
+    /**
+     * Create content, optionally storing the data compressed. Compressed data is decompressed transparently when read.
+     *
+     * @param content the data of the content
+     * @param encoding the encoding of the content, null if the content is binary
+     * @param compress true if the data should be stored compressed
+     */
+    public Content(final byte[] content, final Charset encoding, final boolean compress) {
         this.uuid = UUID.randomUUID();
         setEncoding(encoding);
-        this.data = Arrays.copyOf(content, content.length);
+        try {
+            this.data = new SerialBlob(compress ? compress(content) : content);
+        } catch (SQLException ex) {
+            throw new ContentException("Unable to create content", ex);
+        }
+        this.compressed = compress;
+        this.size = (long) content.length;
         initHash();
     }
 
+    private static byte[] compress(final byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        } catch (IOException ex) {
+            throw new ContentException("Unable to compress content", ex);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Textual content is stored compressed, if compression of content is enabled. Binary content like images is
+     * normally compressed already.
+     *
+     * @param encoding the encoding of the content, null if the content is binary
+     * @return true if content with the given encoding should be stored compressed
+     */
+    public static boolean isCompressible(final Charset encoding) {
+        return encoding != null && ConfigCache.getOrCreate(Config.class).contentCompression();
+    }
+
+    /**
+     * Create content for data already saved in the content store.
+     *
+     * @param hash the hash of the data in the store
+     * @param size the size of the data in bytes
+     * @param encoding the encoding of the content, null if the content is binary
+     */
+    public Content(final String hash, final long size, final Charset encoding) {
+        this.uuid = UUID.randomUUID();
+        setEncoding(encoding);
+        this.hash = hash;
+        this.size = size;
+    }
+
     public Integer getId() {
         return id;
     }
@@ -113,7 +207,7 @@ public class Content implements Serializable {
         this.encoding = encoding == null ? null : encoding.name();
     }
 
-    private static MessageDigest getContentHashDigester() {
+    public static MessageDigest getContentHashDigester() {
         try {
             return MessageDigest.getInstance(HASH_ALGORITHM);
         } catch (NoSuchAlgorithmException ex) {
@@ -121,8 +215,56 @@ public class Content implements Serializable {
         }
     }
 
-    public int getSize() {
-        return data.length;
+    public long getSize() {
+        if (size != null) {
+            return size;
+        }
+        try {
+            return (data == null) ? getStore().size(hash) : data.length();
+        } catch (SQLException | IOException ex) {
+            throw new ContentException("Unable to get size of content " + uuid, ex);
+        }
+    }
+
+    /**
+     * @return true if the data is stored compressed in the gzip format
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return true if the data is kept in the content store and not in the database
+     */
+    public boolean isStored() {
+        return data == null;
+    }
+
+    /**
+     * Get the path of the file holding the data, if the data is kept in a content store in the local file system.
+     *
+     * @return path of the file holding the data
+     */
+    public Optional<Path> getPath() {
+        return isStored() ? getStore().getPath(hash) : Optional.empty();
+    }
+
+    private ContentStore getStore() {
+        return ContentStore.get().orElseThrow(() -> new ContentException("Data of content " + uuid + " is stored, but no content store is configured"));
+    }
+
+    @PrePersist
+    void store() {
+        Optional<ContentStore> store = ContentStore.get();
+        if (data != null && store.isPresent()) {
+            try (InputStream in = getDataAsBinaryStream()) {
+                this.hash = store.get().save(in);
+                this.data = null;
+                this.compressed = false;
+            } catch (IOException ex) {
+                throw new ContentException("Unable to save content " + uuid + " to content store", ex);
+            }
+        }
     }
 
     public String getHash() {
@@ -130,19 +272,208 @@ public class Content implements Serializable {
         return hash;
     }
 
+    /**
+     * @return the hash of the data, if it is known without reading the data
+     */
+    public Optional<String> findHash() {
+        return Optional.ofNullable(hash);
+    }
+
+    /**
+     * Compute the hash of some data using the same algorithm as used for content - e.g. to compare content with a
+     * published file.
+     *
+     * @param in the data to compute the hash for
+     * @return the hash as a hex string
+     * @throws IOException if the data can't be read
+     */
+    public static String hash(final InputStream in) throws IOException {
+        MessageDigest digest = getContentHashDigester();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read = in.read(buffer);
+        while (read != -1) {
+            digest.update(buffer, 0, read);
+            read = in.read(buffer);
+        }
+        return toHash(digest);
+    }
+
+    /**
+     * @param digest digest of some data created using {@link #getContentHashDigester()}
+     * @return the hash as a hex string
+     */
+    public static String toHash(final MessageDigest digest) {
+        return toHex(digest.digest());
+    }
+
     private void initHash() {
         if (hash == null) {
-            MessageDigest digest = getContentHashDigester();
-            this.hash = toHex(digest.digest(data));
+            try (InputStream in = getDataAsBinaryStream()) {
+                this.hash = hash(in);
+            } catch (IOException ex) {
+                throw new ContentException("Unable to compute hash of content " + uuid, ex);
+            }
         }
     }
 
+    /**
+     * Get the data as a stream. When the content has been loaded from the database, the data is streamed from the
+     * database and must be read within the transaction loading the content. Compressed data is decompressed while
+     * read.
+     *
+     * @return stream to read the data from
+     */
     public InputStream getDataAsBinaryStream() {
-        return new ByteArrayInputStream(data);
+        try {
+            if (isStored()) {
+                return getStore().open(hash);
+            }
+            return compressed ? new GZIPInputStream(data.getBinaryStream(), BUFFER_SIZE) : data.getBinaryStream();
+        } catch (SQLException | IOException ex) {
+            throw new ContentException("Unable to read content " + uuid, ex);
+        }
+    }
+
+    /**
+     * Copy the data to a channel using a buffer of fixed size, so the data is never read into memory as a whole. Data
+     * kept in a content store in the local file system is transferred directly from the file.
+     *
+     * @param channel the channel to write the data to
+     * @return number of bytes copied
+     * @throws IOException if the data can't be copied
+     */
+    public long copyTo(final WritableByteChannel channel) throws IOException {
+        Optional<Path> path = getPath();
+        if (path.isPresent()) {
+            return transfer(path.get(), channel, 0, Long.MAX_VALUE);
+        }
+        return copy(getDataAsBinaryStream(), channel, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copy part of the data to a channel - e.g. to send a range of the data requested by a client. Only the part of the
+     * data copied is read, unless the data is compressed.
+     *
+     * @param channel the channel to write the data to
+     * @param offset the position of the first byte to copy
+     * @param length the maximum number of bytes to copy
+     * @return number of bytes copied
+     * @throws IOException if the data can't be copied
+     */
+    public long copyTo(final WritableByteChannel channel, final long offset, final long length) throws IOException {
+        Optional<Path> path = getPath();
+        if (path.isPresent()) {
+            return transfer(path.get(), channel, offset, length);
+        }
+        if (isStored() || isCompressed()) {
+            try (InputStream in = getDataAsBinaryStream()) {
+                skip(in, offset);
+                return copy(in, channel, length);
+            }
+        }
+        long available = getSize() - offset;
+        if (available <= 0) {
+            return 0;
+        }
+        try {
+            return copy(data.getBinaryStream(offset + 1, Math.min(length, available)), channel, length);
+        } catch (SQLException ex) {
+            throw new ContentException("Unable to read content " + uuid, ex);
+        }
+    }
+
+    private static long transfer(final Path path, final WritableByteChannel channel, final long offset, final long length) throws IOException {
+        try (FileChannel in = FileChannel.open(path)) {
+            long end = Math.min(in.size(), offset + Math.min(length, in.size()));
+            long position = offset;
+            while (position < end) {
+                position += in.transferTo(position, end - position, channel);
+            }
+            return Math.max(0, position - offset);
+        }
+    }
+
+    private static void skip(final InputStream in, final long n) throws IOException {
+        long remaining = n;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    return;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Copy the compressed data to a channel without decompressing it - e.g. to send it to clients accepting gzip
+     * encoded data.
+     *
+     * @param channel the channel to write the compressed data to
+     * @return number of bytes copied
+     * @throws IOException if the data can't be copied
+     */
+    public long copyCompressedTo(final WritableByteChannel channel) throws IOException {
+        if (!isCompressed()) {
+            throw new ContentException("Content " + uuid + " is not compressed");
+        }
+        try {
+            return copy(data.getBinaryStream(), channel, Long.MAX_VALUE);
+        } catch (SQLException ex) {
+            throw new ContentException("Unable to read content " + uuid, ex);
+        }
+    }
+
+    /**
+     * Copy the data compressed in the gzip format to a channel. Data stored compressed is copied as is, other data is
+     * compressed while being copied.
+     *
+     * @param channel the channel to write the compressed data to
+     * @return number of bytes copied
+     * @throws IOException if the data can't be copied
+     */
+    public long copyGzipTo(final WritableByteChannel channel) throws IOException {
+        if (isCompressed()) {
+            return copyCompressedTo(channel);
+        }
+        return copy(new GzipCompressingInputStream(getDataAsBinaryStream()), channel, Long.MAX_VALUE);
+    }
+
+    private static long copy(final InputStream data, final WritableByteChannel channel, final long length) throws IOException {
+        long copied = 0;
+        try (ReadableByteChannel in = Channels.newChannel(data)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (copied < length && in.read(limit(buffer, length - copied)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += channel.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return copied;
+    }
+
+    private static ByteBuffer limit(final ByteBuffer buffer, final long remaining) {
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        return buffer;
     }
 
     private byte[] getDataAsBytes() {
-        return data;
+        try (InputStream in = getDataAsBinaryStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read = in.read(buffer);
+            while (read != -1) {
+                out.write(buffer, 0, read);
+                read = in.read(buffer);
+            }
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new ContentException("Unable to read content " + uuid, ex);
+        }
     }
 
     public String getData() {
@@ -151,8 +482,7 @@ public class Content implements Serializable {
     }
 
     /**
-     * Hash to hex string - verified using
-     * http://hash.online-convert.com/md5-generator
+     * Hash to lower case hex string, padded with leading zeros to two characters per byte of the digest.
      */
     private static String toHex(final byte[] digest) {
         return String.format("%0" + (digest.length << 1) + "x", new BigInteger(1, digest));
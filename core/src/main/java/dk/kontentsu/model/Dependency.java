@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.model;
+
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.validation.constraints.NotNull;
+
+import dk.kontentsu.repository.Repository;
+
+/**
+ * Entry in the reverse composition index. An entry states that the content of a version depends on an item - i.e. the
+ * item is part of the composition of the version, either directly or through other compositions at any depth.
+ *
+ * @author Jens Borch Christiansen
+ */
+@Entity
+@Table(name = "dependency",
+        uniqueConstraints = {
+            @UniqueConstraint(columnNames = {"item_id", "version_id"}, name = "dependency_constraint")})
+@NamedQueries({
+    @NamedQuery(name = Repository.DEPENDENCY_GET,
+            query = "SELECT d FROM Dependency d WHERE d.uuid = :uuid"),
+    @NamedQuery(name = Repository.DEPENDENCY_FIND_ALL,
+            query = "SELECT d FROM Dependency d"),
+    @NamedQuery(name = Repository.DEPENDENCY_FIND_VERSIONS,
+            query = "SELECT DISTINCT v FROM Dependency d "
+            + "JOIN d.version v "
+            + "JOIN d.item i "
+            + "WHERE i.uuid = :uuid "
+            + "AND v.state = :state "
+            + "AND v.interval.to > :from AND v.interval.from < :to"),
+    @NamedQuery(name = Repository.DEPENDENCY_FIND_DEPENDENTS,
+            query = "SELECT DISTINCT v FROM Dependency d "
+            + "JOIN d.version v "
+            + "WHERE d.item = :item"),
+    @NamedQuery(name = Repository.DEPENDENCY_FIND_ITEMS,
+            query = "SELECT DISTINCT d.item FROM Dependency d "
+            + "JOIN d.version v "
+            + "WHERE v.item = :item"),
+    @NamedQuery(name = Repository.DEPENDENCY_FIND_BY_VERSION,
+            query = "SELECT d FROM Dependency d WHERE d.version = :version")})
+public class Dependency extends AbstractBaseEntity {
+
+    private static final long serialVersionUID = -5402167021907541396L;
+
+    @NotNull
+    @ManyToOne
+    @JoinColumn(name = "item_id")
+    private Item item;
+
+    @NotNull
+    @ManyToOne
+    @JoinColumn(name = "version_id")
+    private Version version;
+
+    protected Dependency() {
+        //Needed by JPA
+    }
+
+    public Dependency(final Item item, final Version version) {
+        this.item = item;
+        this.version = version;
+    }
+
+    public Item getItem() {
+        return item;
+    }
+
+    public Version getVersion() {
+        return version;
+    }
+
+}
@@ -34,7 +34,6 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
-import javax.persistence.OneToOne;
 import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 
@@ -70,13 +69,29 @@ import dk.kontentsu.repository.Repository;
             + "JOIN f.interval i "
             + "WHERE f.state = :state "
             + "AND i.from >= :from OR i.to > :from"),
+    @NamedQuery(name = Repository.EXTERNAL_FILE_NEXT_CHANGE,
+            query = "SELECT MIN(CASE WHEN i.from > :from THEN i.from ELSE i.to END) "
+            + "FROM ExternalFile f "
+            + "JOIN f.interval i "
+            + "WHERE f.state = :state "
+            + "AND i.to > :from"),
     @NamedQuery(name = Repository.EXTERNAL_FILE_FIND_ALL,
             query = "SELECT f FROM ExternalFile f WHERE f.state = :state"),
     @NamedQuery(name = Repository.EXTERNAL_FILE_FIND_ALL_AT_DATE_TIME,
             query = "SELECT DISTINCT f FROM ExternalFile f "
+            + "JOIN FETCH f.item it "
+            + "LEFT JOIN FETCH it.hosts "
             + "JOIN f.interval i "
             + "WHERE f.state = :state "
             + "AND i.from <= :at AND i.to > :at"),
+    @NamedQuery(name = Repository.EXTERNAL_FILE_FIND_CHANGED,
+            query = "SELECT DISTINCT f FROM ExternalFile f "
+            + "JOIN FETCH f.item it "
+            + "LEFT JOIN FETCH it.hosts "
+            + "JOIN f.interval i "
+            + "WHERE (i.from > :from AND i.from <= :at) "
+            + "OR (i.to > :from AND i.to <= :at) "
+            + "OR f.modified > :since"),
     @NamedQuery(name = Repository.EXTERNAL_FILE_GET,
             query = "SELECT f FROM ExternalFile f WHERE f.uuid = :uuid"),
     @NamedQuery(name = Repository.EXTERNAL_FILE_FIND_BY_URI,
@@ -101,7 +116,7 @@ public class ExternalFile extends AbstractBaseEntity {
     private Item item;
 
     @NotNull
-    @OneToOne(cascade = CascadeType.ALL)
+    @ManyToOne(cascade = {CascadeType.PERSIST, CascadeType.MERGE})
     private Content content;
 
     @NotNull
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.model;
+
+import java.time.ZonedDateTime;
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import dk.kontentsu.repository.Repository;
+
+/**
+ * Persisted request for externalizing a version. Jobs are created in the same transaction as the version, so that no
+ * externalization is lost if the server is stopped before the version has been externalized.
+ *
+ * @author Jens Borch Christiansen
+ */
+@Entity
+@Table(name = "externalization_job")
+@NamedQueries({
+    @NamedQuery(name = Repository.EXTERNALIZATION_JOB_GET,
+            query = "SELECT j FROM ExternalizationJob j WHERE j.uuid = :uuid"),
+    @NamedQuery(name = Repository.EXTERNALIZATION_JOB_FIND_ALL,
+            query = "SELECT j FROM ExternalizationJob j ORDER BY j.created"),
+    @NamedQuery(name = Repository.EXTERNALIZATION_JOB_FIND_BY_STATUS,
+            query = "SELECT j FROM ExternalizationJob j WHERE j.status = :status ORDER BY j.created"),
+    @NamedQuery(name = Repository.EXTERNALIZATION_JOB_FIND_BY_VERSION,
+            query = "SELECT j FROM ExternalizationJob j WHERE j.version = :version ORDER BY j.created"),
+    @NamedQuery(name = Repository.EXTERNALIZATION_JOB_FIND_DUE,
+            query = "SELECT j FROM ExternalizationJob j "
+            + "WHERE j.status = :status "
+            + "AND j.nextAttempt <= :at "
+            + "ORDER BY j.nextAttempt"),
+    @NamedQuery(name = Repository.EXTERNALIZATION_JOB_COUNT_BY_STATUS,
+            query = "SELECT COUNT(j) FROM ExternalizationJob j WHERE j.status = :status")})
+public class ExternalizationJob extends AbstractBaseEntity {
+
+    private static final long serialVersionUID = -3323165734587385932L;
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    @NotNull
+    @Column(name = "version_uuid", length = 32)
+    private UUID version;
+
+    @NotNull
+    @Column(name = "status", length = 50)
+    @Enumerated(EnumType.STRING)
+    private Status status;
+
+    @Column(name = "attempts")
+    private int attempts;
+
+    @NotNull
+    @Column(name = "next_attempt")
+    private ZonedDateTime nextAttempt;
+
+    @Column(name = "error", length = MAX_ERROR_LENGTH)
+    private String error;
+
+    protected ExternalizationJob() {
+        //Needed by JPA
+    }
+
+    public ExternalizationJob(final Version version) {
+        this.version = version.getUuid();
+        this.status = Status.PENDING;
+        this.nextAttempt = ZonedDateTime.now();
+    }
+
+    public UUID getVersion() {
+        return version;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public ZonedDateTime getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isPending() {
+        return status == Status.PENDING;
+    }
+
+    public void start() {
+        status = Status.RUNNING;
+        attempts++;
+    }
+
+    /**
+     * Reset a job that was running when the server stopped.
+     */
+    public void reset() {
+        status = Status.PENDING;
+    }
+
+    /**
+     * Register a failed attempt. The job will be retried at the given time, or marked as failed if the maximum number
+     * of attempts has been reached.
+     *
+     * @param cause the error causing the attempt to fail
+     * @param next when to retry the job
+     * @param maxAttempts maximum number of attempts before the job is marked as failed
+     */
+    public void failed(final Throwable cause, final ZonedDateTime next, final int maxAttempts) {
+        String msg = String.valueOf(cause.getMessage());
+        this.error = msg.length() > MAX_ERROR_LENGTH ? msg.substring(0, MAX_ERROR_LENGTH) : msg;
+        this.nextAttempt = next;
+        this.status = attempts >= maxAttempts ? Status.FAILED : Status.PENDING;
+    }
+
+    /**
+     * Status of an externalization job. Jobs that have failed too many times are kept with status
+     * <code>FAILED</code>, until they are handled manually.
+     */
+    public enum Status {
+        PENDING, RUNNING, FAILED
+    }
+
+}
@@ -103,6 +103,16 @@ public class Interval implements Serializable, Comparable<Interval> {
         return other != null && (other.equals(this) || from.compareTo(other.to) < 0 && other.from.compareTo(to) < 0);
     }
 
+    /**
+     * Returns true if the interval includes the given time. The end of the interval is not included.
+     *
+     * @param at the time to check
+     * @return true if the time is in the interval
+     */
+    public boolean includes(final ZonedDateTime at) {
+        return from.compareTo(at) <= 0 && at.compareTo(to) < 0;
+    }
+
     /**
      * Creates a new interval that is the intersection of this interval and the other interval.
      *
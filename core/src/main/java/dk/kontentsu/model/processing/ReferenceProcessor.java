@@ -23,13 +23,20 @@
  */
 package dk.kontentsu.model.processing;
 
+import java.time.ZonedDateTime;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiPredicate;
 
 import dk.kontentsu.model.Interval;
 import dk.kontentsu.model.Item;
@@ -37,8 +44,12 @@ import dk.kontentsu.model.Version;
 import dk.kontentsu.model.processing.TemporalReferenceTree.Node;
 
 /**
- * Breadth-first tree processor for finding all temporal versions of items that
- * can become an external pages.
+ * Sweep-line processor for finding all temporal versions of items that can become an external pages.
+ *
+ * The interval of the root version is split into segments using the boundaries of all versions in the composition
+ * graph. Within a segment the same version of every composed item is active, so adjacent segments composing the same
+ * versions are merged, and a tree is built for each of the merged intervals in a single pass. Segments where a composed
+ * item has no active version are skipped.
  *
  * @author Jens Borch Christiansen
  *
@@ -47,49 +58,152 @@ import dk.kontentsu.model.processing.TemporalReferenceTree.Node;
  */
 public class ReferenceProcessor<R extends TemporalReferenceTreeVisitor.Results, V extends TemporalReferenceTreeVisitor<R>> {
 
-    private final Deque<Node> nodes = new ArrayDeque<>();
-    private final Deque<TemporalReferenceTree<R, V>> processing = new ArrayDeque<>();
+    private static final Comparator<ZonedDateTime> INSTANT_ORDER = Comparator.comparing(ZonedDateTime::toInstant);
+
+    private final TemporalReferenceTree<R, V> tree;
     private final List<TemporalReferenceTree<R, V>> processed = new ArrayList<>();
+    private final Map<Version, Map<Item.URI, List<Version>>> compositions = new IdentityHashMap<>();
 
     public ReferenceProcessor(final Version root, final V visitor) {
-        TemporalReferenceTree<R, V> tree = new TemporalReferenceTree<>(root, visitor);
-        processing.push(tree);
+        this.tree = new TemporalReferenceTree<>(root, visitor);
     }
 
     public List<TemporalReferenceTree<R, V>> process() {
-        while (!processing.isEmpty()) {
-            InjectableContentProcessingScope.execute(this::processInScope);
+        return process((interval, versions) -> true);
+    }
+
+    /**
+     * Process the root version, only building the trees accepted by a filter. The filter is given the interval of the
+     * tree and the versions composed into the root version, before any node is visited - i.e. trees already
+     * externalized can be skipped without generating the content.
+     *
+     * @param filter predicate deciding if a tree should be built
+     * @return the trees built
+     */
+    public List<TemporalReferenceTree<R, V>> process(final BiPredicate<Interval, List<Version>> filter) {
+        Version root = tree.getRoot().getVersion();
+        Map<Interval, List<Version>> intervals = new LinkedHashMap<>();
+        List<Version> previous = null;
+        ZonedDateTime from = null;
+        ZonedDateTime to = null;
+        for (Interval segment : split(root)) {
+            Optional<List<Version>> selected = select(root, segment);
+            if (selected.isPresent() && selected.get().equals(previous)) {
+                to = segment.getTo();
+            } else {
+                if (previous != null) {
+                    intervals.put(new Interval(from, to), previous);
+                }
+                previous = selected.orElse(null);
+                from = segment.getFrom();
+                to = segment.getTo();
+            }
         }
+        if (previous != null) {
+            intervals.put(new Interval(from, to), previous);
+        }
+
+        intervals.forEach((interval, versions) -> {
+            if (filter.test(interval, Collections.unmodifiableList(versions))) {
+                InjectableContentProcessingScope.execute(() -> processInScope(interval));
+            }
+        });
         return Collections.unmodifiableList(processed);
     }
 
-    public void processInScope() {
-        TemporalReferenceTree<R, V> tree = processing.pop();
-        nodes.push(tree.getRoot());
+    private void processInScope(final Interval interval) {
+        TemporalReferenceTree<R, V> current;
+        if (processed.isEmpty()) {
+            current = tree;
+            current.setInterval(interval);
+        } else {
+            current = new TemporalReferenceTree<>(tree, interval);
+        }
+        Deque<Node> nodes = new ArrayDeque<>();
+        nodes.push(current.getRoot());
         while (!nodes.isEmpty()) {
-            Node current = nodes.pop();
-            Map<Item.URI, List<Version>> comps = current.getVersion().getComposition();
-            if (comps.isEmpty() && !processed.contains(tree)) {
-                processed.add(tree);
+            Node node = nodes.pop();
+            for (List<Version> versions : getComposition(node.getVersion()).values()) {
+                versions.stream()
+                        .filter(v -> covers(v.getInterval(), interval))
+                        .findFirst()
+                        .ifPresent(v -> nodes.push(node.addChild(v)));
+            }
+        }
+        current.finalizeResults();
+        processed.add(current);
+    }
+
+    /**
+     * Split the interval of the root version into segments at every boundary of the versions in the composition graph.
+     */
+    private List<Interval> split(final Version root) {
+        Interval interval = root.getInterval();
+        Set<ZonedDateTime> boundaries = new TreeSet<>(INSTANT_ORDER);
+        boundaries.add(interval.getFrom());
+        boundaries.add(interval.getTo());
+
+        Map<Version, Boolean> visited = new IdentityHashMap<>();
+        Deque<Version> versions = new ArrayDeque<>();
+        versions.push(root);
+        while (!versions.isEmpty()) {
+            Version version = versions.pop();
+            if (visited.put(version, Boolean.TRUE) == null) {
+                addBoundary(boundaries, version.getInterval().getFrom(), interval);
+                addBoundary(boundaries, version.getInterval().getTo(), interval);
+                getComposition(version).values().forEach(l -> l.forEach(versions::push));
             }
-            for (Map.Entry<Item.URI, List<Version>> versions : comps.entrySet()) {
-                boolean first = true;
-                Interval startInterval = tree.getInterval();
-                for (Version child : versions.getValue()) {
-                    Optional<Interval> i = child.getInterval().intersection(startInterval);
-                    if (i.isPresent()) {
-                        if (first) {
-                            tree.setInterval(i.get());
-                            Node childNode = current.addChild(child);
-                            nodes.push(childNode);
-                            first = false;
-                        } else {
-                            processing.push(new TemporalReferenceTree<>(tree, i.get()));
-                        }
-                    }
+        }
+
+        List<Interval> segments = new ArrayList<>(boundaries.size());
+        ZonedDateTime previous = null;
+        for (ZonedDateTime boundary : boundaries) {
+            if (previous != null) {
+                segments.add(new Interval(previous, boundary));
+            }
+            previous = boundary;
+        }
+        return segments;
+    }
+
+    private static void addBoundary(final Set<ZonedDateTime> boundaries, final ZonedDateTime boundary, final Interval interval) {
+        if (boundary.isAfter(interval.getFrom()) && boundary.isBefore(interval.getTo())) {
+            boundaries.add(boundary);
+        }
+    }
+
+    /**
+     * Find the versions composed into the root version in a segment, in the order they will be visited.
+     *
+     * @return the versions or empty if a composed item has no version active in the entire segment
+     */
+    private Optional<List<Version>> select(final Version root, final Interval segment) {
+        List<Version> selected = new ArrayList<>();
+        Deque<Version> versions = new ArrayDeque<>();
+        versions.push(root);
+        while (!versions.isEmpty()) {
+            Version version = versions.pop();
+            for (Map.Entry<Item.URI, List<Version>> composition : getComposition(version).entrySet()) {
+                Optional<Version> child = composition.getValue()
+                        .stream()
+                        .filter(v -> covers(v.getInterval(), segment))
+                        .findFirst();
+                if (!child.isPresent()) {
+                    return Optional.empty();
                 }
+                selected.add(child.get());
+                versions.push(child.get());
             }
         }
-        tree.finalizeResults();
+        return Optional.of(selected);
+    }
+
+    private Map<Item.URI, List<Version>> getComposition(final Version version) {
+        return compositions.computeIfAbsent(version, Version::getComposition);
     }
+
+    private static boolean covers(final Interval interval, final Interval segment) {
+        return !interval.getFrom().isAfter(segment.getFrom()) && !interval.getTo().isBefore(segment.getTo());
+    }
+
 }
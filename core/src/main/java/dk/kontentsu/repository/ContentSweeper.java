@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.repository;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import dk.kontentsu.configuration.Config;
+import dk.kontentsu.store.ContentStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Periodically delete content no longer referenced by any version or external file. Content is shared by hash, so it
+ * can't be deleted together with the versions or files referencing it.
+ *
+ * Content with data in the content store is only deleted if the data hasn't been saved within the configured grace
+ * period - e.g. by an upload of the same data not yet committed. The data is then deleted from the store, unless other
+ * content has the same data.
+ *
+ * @author Jens Borch Christiansen
+ */
+@LocalBean
+@Singleton
+public class ContentSweeper {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    @Inject
+    private ItemRepository repo;
+
+    @Inject
+    private Config config;
+
+    @Schedule(hour = "*", minute = "15", persistent = false)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void sweep() {
+        Optional<ContentStore> store = ContentStore.get();
+        Instant savedBefore = Instant.now().minus(config.contentSweepGraceMinutes(), ChronoUnit.MINUTES);
+        List<String> hashes = repo.deleteUnreferencedContent(c -> !c.isStored()
+                || store.map(s -> isSavedBefore(s, c.getHash(), savedBefore)).orElse(false));
+        LOGGER.info("Deleted unreferenced content, {} with data kept in the content store", hashes.size());
+        store.ifPresent(s -> hashes.stream()
+                .filter(h -> !repo.isContentSaved(h))
+                .filter(h -> isSavedBefore(s, h, savedBefore))
+                .forEach(h -> delete(s, h)));
+    }
+
+    private static boolean isSavedBefore(final ContentStore store, final String hash, final Instant savedBefore) {
+        try {
+            return !store.contains(hash) || store.lastSaved(hash).isBefore(savedBefore);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to get the time data with hash {} was saved to content store", hash, ex);
+            return false;
+        }
+    }
+
+    private static void delete(final ContentStore store, final String hash) {
+        try {
+            LOGGER.debug("Deleting data with hash {} from content store", hash);
+            store.delete(hash);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to delete data with hash {} from content store", hash, ex);
+        }
+    }
+
+}
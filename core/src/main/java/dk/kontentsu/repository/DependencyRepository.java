@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.repository;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.TypedQuery;
+
+import dk.kontentsu.model.Dependency;
+import dk.kontentsu.model.Interval;
+import dk.kontentsu.model.Item;
+import dk.kontentsu.model.Reference;
+import dk.kontentsu.model.ReferenceType;
+import dk.kontentsu.model.State;
+import dk.kontentsu.model.Version;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Repository maintaining the reverse composition index - i.e. for a given item, all the versions that compose the item
+ * either directly or through other compositions.
+ *
+ * The index is a superset of the actual dependencies, as entries are not removed when versions are deleted. Deleted
+ * versions are filtered out when querying the index.
+ *
+ * @author Jens Borch Christiansen
+ */
+@Stateless
+@LocalBean
+@TransactionAttribute(TransactionAttributeType.MANDATORY)
+public class DependencyRepository extends Repository<Dependency> {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    @Override
+    public Dependency get(final UUID uuid) {
+        TypedQuery<Dependency> query = em.createNamedQuery(DEPENDENCY_GET, Dependency.class);
+        query.setParameter("uuid", uuid);
+        return query.getSingleResult();
+    }
+
+    @Override
+    public List<Dependency> findAll() {
+        TypedQuery<Dependency> query = em.createNamedQuery(DEPENDENCY_FIND_ALL, Dependency.class);
+        return query.getResultList();
+    }
+
+    /**
+     * Find all active versions overlapping the interval that depends on a item at any depth.
+     *
+     * @param item the item (fragment) to find dependent versions for
+     * @param interval the interval the versions must overlap
+     * @return list of versions composing the item
+     */
+    public List<Version> findVersions(final Item item, final Interval interval) {
+        TypedQuery<Version> query = em.createNamedQuery(DEPENDENCY_FIND_VERSIONS, Version.class);
+        query.setParameter("uuid", item.getUuid());
+        query.setParameter("state", State.ACTIVE);
+        query.setParameter("from", interval.getFrom());
+        query.setParameter("to", interval.getTo());
+        return query.getResultList();
+    }
+
+    /**
+     * Add a newly created version to the index. The version will depend on all items in its composition and on all
+     * items they depend on. All versions already depending on the item of the new version will also depend on these
+     * items.
+     *
+     * @param version the new version to index
+     */
+    public void index(final Version version) {
+        Set<Item> items = new HashSet<>();
+        version.getReferences()
+                .stream()
+                .filter(r -> r.getType() == ReferenceType.COMPOSITION)
+                .map(Reference::getItem)
+                .forEach(i -> {
+                    items.add(i);
+                    items.addAll(findItems(i));
+                });
+        if (!items.isEmpty()) {
+            LOGGER.debug("Indexing version {} depending on {} item(s)", version.getUuid(), items.size());
+            add(version, items, Collections.emptySet());
+            findDependents(version.getItem())
+                    .stream()
+                    .filter(v -> !v.equals(version))
+                    .forEach(v -> add(v, items, findItems(v)));
+        }
+    }
+
+    private void add(final Version version, final Set<Item> items, final Set<Item> existing) {
+        items.stream()
+                .filter(i -> !existing.contains(i))
+                .filter(i -> !i.equals(version.getItem()))
+                .forEach(i -> em.persist(new Dependency(i, version)));
+    }
+
+    private Set<Item> findItems(final Item item) {
+        TypedQuery<Item> query = em.createNamedQuery(DEPENDENCY_FIND_ITEMS, Item.class);
+        query.setParameter("item", item);
+        return new HashSet<>(query.getResultList());
+    }
+
+    private Set<Item> findItems(final Version version) {
+        TypedQuery<Dependency> query = em.createNamedQuery(DEPENDENCY_FIND_BY_VERSION, Dependency.class);
+        query.setParameter("version", version);
+        return query.getResultList()
+                .stream()
+                .map(Dependency::getItem)
+                .collect(Collectors.toSet());
+    }
+
+    private List<Version> findDependents(final Item item) {
+        TypedQuery<Version> query = em.createNamedQuery(DEPENDENCY_FIND_DEPENDENTS, Version.class);
+        query.setParameter("item", item);
+        return query.getResultList();
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.repository;
+
+import java.time.ZonedDateTime;
+import java.time.chrono.ChronoZonedDateTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+import javax.persistence.NoResultException;
+
+import dk.kontentsu.configuration.Config;
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.Interval;
+import dk.kontentsu.model.Item;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Read-through cache of the files available at a given URI. The files available only change when a file starts or
+ * ends, so cached files are valid until the next time a file starts or ends. When that time has passed, all files are
+ * evicted. Files of an item are also evicted when the item is externalized.
+ *
+ * Only lookups in the period the cache is valid for are cached - lookups at other times are passed on to the
+ * repository. The cached files are detached and must not be modified.
+ *
+ * @author Jens Borch Christiansen
+ */
+@ApplicationScoped
+public class ExternalFileCache {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    @Inject
+    private ExternalFileRepository repo;
+
+    @Inject
+    private Config config;
+
+    private int size;
+
+    private Map<Item.URI, ExternalFile> files;
+
+    private ZonedDateTime from;
+
+    private ZonedDateTime until;
+
+    private long generation;
+
+    public ExternalFileCache() {
+        //Needed by CDI
+    }
+
+    ExternalFileCache(final ExternalFileRepository repo, final int size) {
+        this.repo = repo;
+        this.size = size;
+        this.files = create(size);
+    }
+
+    @PostConstruct
+    public void init() {
+        LOGGER.info("Caching up to {} files", config.filesCacheSize());
+        size = config.filesCacheSize();
+        files = create(size);
+    }
+
+    @SuppressWarnings("serial")
+    private static Map<Item.URI, ExternalFile> create(final int size) {
+        return new LinkedHashMap<Item.URI, ExternalFile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Item.URI, ExternalFile> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    public ExternalFile getByUri(final String uri, final ZonedDateTime at) {
+        try {
+            return getByUri(new Item.URI(uri), at);
+        } catch (IllegalArgumentException e) {
+            throw new NoResultException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the file available at the given URI and time, from the cache if possible.
+     *
+     * @param uri the URI of the file
+     * @param at the time to get the file at, null for now
+     * @return the file available
+     * @throws NoResultException if no file is available
+     */
+    public ExternalFile getByUri(final Item.URI uri, final ZonedDateTime at) {
+        ZonedDateTime now = ZonedDateTime.now();
+        ZonedDateTime time = (at == null) ? now : at;
+        if (size <= 0) {
+            return repo.getByUri(uri, time);
+        }
+        if (isExpired(now)) {
+            expire(now);
+        }
+        long current;
+        synchronized (this) {
+            if (isExpired(now) || time.isBefore(from) || !time.isBefore(until)) {
+                current = -1;
+            } else {
+                ExternalFile file = files.get(uri);
+                if (file != null) {
+                    return file;
+                }
+                current = generation;
+            }
+        }
+        ExternalFile file = repo.getByUri(uri, time);
+        synchronized (this) {
+            // Don't cache files found before the files of the URI were evicted
+            if (current == generation) {
+                files.put(uri, file);
+            }
+        }
+        return file;
+    }
+
+    private synchronized boolean isExpired(final ZonedDateTime now) {
+        return until == null || !now.isBefore(until);
+    }
+
+    /**
+     * Evict all files and cache files available from now until the next time a file starts or ends. The next time is
+     * found without holding the lock, so lookups aren't blocked by the query. If files are changed or the cache is
+     * expired by another thread while the time is found, the time found is discarded, as it may not include the
+     * change.
+     */
+    private void expire(final ZonedDateTime now) {
+        long current;
+        synchronized (this) {
+            current = generation;
+        }
+        ZonedDateTime next = repo.findNextChange(now).orElse(Interval.INFINITE);
+        synchronized (this) {
+            if (current == generation) {
+                files.clear();
+                generation++;
+                from = now;
+                until = next;
+                LOGGER.debug("Caching files available from {} until {}", from, until);
+            }
+        }
+    }
+
+    /**
+     * Evict the files of an externalized item, when the transaction externalizing the item has been committed.
+     *
+     * @param event the files changed
+     */
+    public void evict(@Observes(during = TransactionPhase.AFTER_SUCCESS) final Changed event) {
+        synchronized (this) {
+            generation++;
+            files.remove(event.getUri());
+            if (from != null) {
+                event.getSchedule().stream()
+                        .filter(t -> t.isAfter(from))
+                        .min(ChronoZonedDateTime::compareTo)
+                        .filter(t -> t.isBefore(until))
+                        .ifPresent(t -> until = t);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * Event fired when the files of an item have been changed.
+     */
+    public static final class Changed {
+
+        private final Item.URI uri;
+        private final Set<ZonedDateTime> schedule;
+
+        /**
+         * @param uri the URI of the item changed
+         * @param schedule the start and end times of the files changed
+         */
+        public Changed(final Item.URI uri, final Set<ZonedDateTime> schedule) {
+            this.uri = uri;
+            this.schedule = Collections.unmodifiableSet(new HashSet<>(schedule));
+        }
+
+        public Item.URI getUri() {
+            return uri;
+        }
+
+        public Set<ZonedDateTime> getSchedule() {
+            return schedule;
+        }
+    }
+
+}
@@ -47,6 +47,10 @@ import dk.kontentsu.model.State;
 /**
  * Repository class for e.g. persisting external files that can be published directly to the CDN.
  *
+ * The methods used when publishing files start a short read transaction if needed, so the publication doesn't hold a
+ * transaction while the files are written. The hosts of the items are fetched with the files, so they can be read
+ * after the transaction has ended.
+ *
  * @author Jens Borch Christiansen
  */
 @Stateless
@@ -54,7 +58,7 @@ import dk.kontentsu.model.State;
 @TransactionAttribute(TransactionAttributeType.MANDATORY)
 public class ExternalFileRepository extends Repository<ExternalFile> {
 
-    private static final int MIN_SCHEDULING_INTERVAL = 5;
+    public static final int MIN_SCHEDULING_INTERVAL = 5;
 
     @Override
     public ExternalFile get(final UUID uuid) {
@@ -63,6 +67,7 @@ public class ExternalFileRepository extends Repository<ExternalFile> {
         return query.getSingleResult();
     }
 
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
     public Optional<ExternalFile> findByUri(final Item.URI uri, final ZonedDateTime at) {
         try {
             return Optional.of(getByUri(uri, at));
@@ -105,6 +110,7 @@ public class ExternalFileRepository extends Repository<ExternalFile> {
         return query.getResultList();
     }
 
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
     public List<ExternalFile> findAll(final ZonedDateTime at) {
         TypedQuery<ExternalFile> query = em.createNamedQuery(EXTERNAL_FILE_FIND_ALL_AT_DATE_TIME, ExternalFile.class);
         query.setParameter("state", State.ACTIVE);
@@ -112,6 +118,24 @@ public class ExternalFileRepository extends Repository<ExternalFile> {
         return query.getResultList();
     }
 
+    /**
+     * Find files, in any state, that start or end after <code>from</code> and no later than <code>at</code>, or that
+     * have been created or modified since the given time.
+     *
+     * @param from time files were last published at
+     * @param at time files are published at
+     * @param since time of the last publication
+     * @return files changed since the last publication
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public List<ExternalFile> findChanged(final ZonedDateTime from, final ZonedDateTime at, final ZonedDateTime since) {
+        TypedQuery<ExternalFile> query = em.createNamedQuery(EXTERNAL_FILE_FIND_CHANGED, ExternalFile.class);
+        query.setParameter("from", from);
+        query.setParameter("at", at);
+        query.setParameter("since", since);
+        return query.getResultList();
+    }
+
     public List<ExternalFile> findAll(final Interval interval) {
         TypedQuery<ExternalFile> query = em.createNamedQuery(EXTERNAL_FILE_FIND_ALL_IN_INTERVAL, ExternalFile.class);
         query.setParameter("state", State.ACTIVE);
@@ -120,6 +144,22 @@ public class ExternalFileRepository extends Repository<ExternalFile> {
         return query.getResultList();
     }
 
+    /**
+     * Find the first time after the given time at which a file starts or ends, i.e. when the files available change.
+     * Unlike {@link #getSchedule(ZonedDateTime)}, times close to each other are not merged, and the time is found by
+     * the database without loading the intervals.
+     *
+     * @param from the time to find the next change after
+     * @return the time of the next change, if any
+     */
+    public Optional<ZonedDateTime> findNextChange(final ZonedDateTime from) {
+        TypedQuery<ZonedDateTime> query = em.createNamedQuery(EXTERNAL_FILE_NEXT_CHANGE, ZonedDateTime.class);
+        query.setParameter("from", from);
+        query.setParameter("state", State.ACTIVE);
+        return Optional.ofNullable(query.getSingleResult());
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
     public Set<ZonedDateTime> getSchedule() {
         return getSchedule(ZonedDateTime.now());
     }
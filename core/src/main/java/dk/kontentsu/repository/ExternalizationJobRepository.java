@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.repository;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.TypedQuery;
+
+import dk.kontentsu.model.ExternalizationJob;
+
+/**
+ * Repository for the externalization jobs waiting to be processed.
+ *
+ * @author Jens Borch Christiansen
+ */
+@Stateless
+@LocalBean
+@TransactionAttribute(TransactionAttributeType.MANDATORY)
+public class ExternalizationJobRepository extends Repository<ExternalizationJob> {
+
+    @Override
+    public ExternalizationJob get(final UUID uuid) {
+        TypedQuery<ExternalizationJob> query = em.createNamedQuery(EXTERNALIZATION_JOB_GET, ExternalizationJob.class);
+        query.setParameter("uuid", uuid);
+        return query.getSingleResult();
+    }
+
+    @Override
+    public List<ExternalizationJob> findAll() {
+        TypedQuery<ExternalizationJob> query = em.createNamedQuery(EXTERNALIZATION_JOB_FIND_ALL, ExternalizationJob.class);
+        return query.getResultList();
+    }
+
+    public List<ExternalizationJob> findByStatus(final ExternalizationJob.Status status) {
+        TypedQuery<ExternalizationJob> query = em.createNamedQuery(EXTERNALIZATION_JOB_FIND_BY_STATUS, ExternalizationJob.class);
+        query.setParameter("status", status);
+        return query.getResultList();
+    }
+
+    public List<ExternalizationJob> findByVersion(final UUID version) {
+        TypedQuery<ExternalizationJob> query = em.createNamedQuery(EXTERNALIZATION_JOB_FIND_BY_VERSION, ExternalizationJob.class);
+        query.setParameter("version", version);
+        return query.getResultList();
+    }
+
+    /**
+     * Find pending jobs that are due at a given time, ordered by when they should be processed.
+     *
+     * @param at time to find due jobs for
+     * @param max maximum number of jobs to return
+     * @return list of jobs to process
+     */
+    public List<ExternalizationJob> findDue(final ZonedDateTime at, final int max) {
+        TypedQuery<ExternalizationJob> query = em.createNamedQuery(EXTERNALIZATION_JOB_FIND_DUE, ExternalizationJob.class);
+        query.setParameter("status", ExternalizationJob.Status.PENDING);
+        query.setParameter("at", at);
+        query.setMaxResults(max);
+        return query.getResultList();
+    }
+
+    /**
+     * Find the oldest job with a given status.
+     *
+     * @param status the status of the job
+     * @return the oldest job if any
+     */
+    public Optional<ExternalizationJob> findOldest(final ExternalizationJob.Status status) {
+        TypedQuery<ExternalizationJob> query = em.createNamedQuery(EXTERNALIZATION_JOB_FIND_BY_STATUS, ExternalizationJob.class);
+        query.setParameter("status", status);
+        query.setMaxResults(1);
+        return query.getResultList().stream().findFirst();
+    }
+
+    public long count(final ExternalizationJob.Status status) {
+        TypedQuery<Long> query = em.createNamedQuery(EXTERNALIZATION_JOB_COUNT_BY_STATUS, Long.class);
+        query.setParameter("status", status);
+        return query.getSingleResult();
+    }
+
+    public void delete(final ExternalizationJob job) {
+        em.remove(job);
+    }
+
+}
@@ -23,15 +23,22 @@
  */
 package dk.kontentsu.repository;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
@@ -47,6 +54,9 @@ import dk.kontentsu.model.Item;
 import dk.kontentsu.model.MimeType;
 import dk.kontentsu.model.State;
 import dk.kontentsu.model.Version;
+import dk.kontentsu.store.ContentStore;
+import dk.kontentsu.util.CountingInputStream;
+import dk.kontentsu.util.GzipCompressingInputStream;
 import org.hibernate.internal.SessionImpl;
 
 /**
@@ -59,6 +69,8 @@ import org.hibernate.internal.SessionImpl;
 @TransactionAttribute(TransactionAttributeType.MANDATORY)
 public class ItemRepository extends Repository<Item> {
 
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
     @Inject
     private TermRepository termRepo;
 
@@ -113,19 +125,206 @@ public class ItemRepository extends Repository<Item> {
         return query.getSingleResult();
     }
 
+    /**
+     * Copy content to a channel, starting a new transaction if needed - e.g. when streaming content in a response after
+     * the transaction finding the content has ended.
+     *
+     * @param uuid the uuid of the content to copy
+     * @param channel the channel to write the content to
+     * @return number of bytes copied
+     * @throws IOException if the content can't be copied
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public long copyContent(final UUID uuid, final WritableByteChannel channel) throws IOException {
+        return getContent(uuid).copyTo(channel);
+    }
+
+    /**
+     * Copy part of the content to a channel, starting a new transaction if needed - e.g. when streaming a range of the
+     * content requested by a client.
+     *
+     * @param uuid the uuid of the content to copy
+     * @param channel the channel to write the content to
+     * @param offset the position of the first byte to copy
+     * @param length the maximum number of bytes to copy
+     * @return number of bytes copied
+     * @throws IOException if the content can't be copied
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public long copyContent(final UUID uuid, final WritableByteChannel channel, final long offset, final long length) throws IOException {
+        return getContent(uuid).copyTo(channel, offset, length);
+    }
+
+    /**
+     * Copy the data of content compressed in the gzip format to a channel, starting a new transaction if needed. Data
+     * stored compressed is copied without decompressing it.
+     *
+     * @param uuid the uuid of the content to copy
+     * @param channel the channel to write the compressed data to
+     * @return number of bytes copied
+     * @throws IOException if the content can't be copied
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public long copyCompressedContent(final UUID uuid, final WritableByteChannel channel) throws IOException {
+        return getContent(uuid).copyGzipTo(channel);
+    }
+
+    /**
+     * Get the hash of content without loading the data, e.g. to validate cached copies of the content. If the hash of
+     * the content has never been computed, it is computed and saved.
+     *
+     * @param uuid the uuid of the content
+     * @return the hash of the content data
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public String getContentHash(final UUID uuid) {
+        TypedQuery<String> query = em.createNamedQuery(CONTENT_GET_HASH, String.class);
+        query.setParameter("uuid", uuid);
+        String hash = query.getSingleResult();
+        return (hash == null) ? getContent(uuid).getHash() : hash;
+    }
+
+    /**
+     * Find the first content saved with the given hash and encoding.
+     *
+     * @param hash the hash of the content data
+     * @param encoding the encoding of the content, null if the content is binary
+     * @return content with the same data and encoding if any
+     */
+    public Optional<Content> findContent(final String hash, final Charset encoding) {
+        TypedQuery<Content> query = em.createNamedQuery(CONTENT_FIND_BY_HASH, Content.class);
+        query.setParameter("hash", hash);
+        query.setParameter("encoding", (encoding == null) ? null : encoding.name());
+        query.setMaxResults(1);
+        return query.getResultList().stream().findFirst();
+    }
+
+    /**
+     * Find content with the same data and encoding as the given content, so it can be shared instead of saving a copy.
+     *
+     * @param content the content to find a saved copy of
+     * @return the saved content, or the given content if it is saved or no copy of it exists
+     */
+    public Content findContent(final Content content) {
+        if (content.getId() != null) {
+            return content;
+        }
+        return findContent(content.getHash(), content.getEncoding().orElse(null)).orElse(content);
+    }
+
+    /**
+     * Delete content not referenced by any version or external file - e.g. content of items removed.
+     *
+     * @param filter content to delete of the content not referenced
+     * @return the hashes of the deleted content with data kept in the content store
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public List<String> deleteUnreferencedContent(final Predicate<Content> filter) {
+        List<Content> unreferenced = em.createNamedQuery(CONTENT_FIND_UNREFERENCED, Content.class)
+                .getResultList()
+                .stream()
+                .filter(filter)
+                .collect(Collectors.toList());
+        unreferenced.forEach(em::remove);
+        return unreferenced.stream()
+                .filter(Content::isStored)
+                .map(Content::getHash)
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param hash the hash of some data
+     * @return true if any content with data having the given hash is saved
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public boolean isContentSaved(final String hash) {
+        TypedQuery<Long> query = em.createNamedQuery(CONTENT_COUNT_BY_HASH, Long.class);
+        query.setParameter("hash", hash);
+        return query.getSingleResult() > 0;
+    }
+
+    /**
+     * Save content created in memory - e.g. by externalization. If content with the same data and encoding has already
+     * been saved, the saved content is returned instead.
+     *
+     * @param content the content to save
+     * @return the saved content
+     */
+    public Content saveContent(final Content content) {
+        Content saved = findContent(content);
+        if (saved.getId() != null) {
+            return saved;
+        }
+        try (InputStream data = content.getDataAsBinaryStream()) {
+            return saveContent(data, content.getEncoding().orElse(null), null);
+        } catch (IOException ex) {
+            throw new ContentException("Error saving content " + content.getUuid(), ex);
+        }
+    }
+
+    /**
+     * Save content streamed from an upload. The hash and size of the data are computed while the data is streamed to
+     * storage, so the data is never read back. If content with the same data and encoding has already been saved, the
+     * saved content is returned and the uploaded data is discarded.
+     */
     public Content saveContent(final InputStream content, final Charset encoding, final MimeType mimeType) {
-        UUID uuid = saveContentUsingJDBC(content, encoding, mimeType);
-        return getContent(uuid);
+        Optional<ContentStore> store = ContentStore.get();
+        if (store.isPresent()) {
+            return saveContentToStore(store.get(), content, encoding);
+        }
+        MessageDigest digest = Content.getContentHashDigester();
+        CountingInputStream counter = new CountingInputStream(content);
+        InputStream data = new DigestInputStream(counter, digest);
+        boolean compress = Content.isCompressible(encoding);
+        UUID uuid = saveContentUsingJDBC(compress ? new GzipCompressingInputStream(data) : data, compress, encoding, mimeType);
+        String hash = Content.toHash(digest);
+        Optional<Content> existing = findContent(hash, encoding);
+        if (!existing.isPresent() && updateContentUsingJDBC(uuid, hash, counter.getCount())) {
+            return getContent(uuid);
+        }
+        deleteContentUsingJDBC(uuid);
+        return existing.orElseGet(() -> getSavedContent(hash, encoding));
+    }
+
+    private Content saveContentToStore(final ContentStore store, final InputStream content, final Charset encoding) {
+        String hash;
+        long size;
+        try {
+            hash = store.save(content);
+            size = store.size(hash);
+        } catch (IOException ex) {
+            throw new ContentException("Error saving content to content store", ex);
+        }
+        Optional<Content> existing = findContent(hash, encoding);
+        if (existing.isPresent()) {
+            return existing.get();
+        }
+        UUID uuid = UUID.randomUUID();
+        if (saveStoredContentUsingJDBC(uuid, hash, size, encoding)) {
+            return getContent(uuid);
+        }
+        return getSavedContent(hash, encoding);
     }
 
-    private UUID saveContentUsingJDBC(final InputStream content, final Charset encoding, final MimeType mimeType) {
+    /**
+     * Get content saved by a concurrent transaction, after the unique constraint on hash and encoding has rejected
+     * saving the same data again.
+     */
+    private Content getSavedContent(final String hash, final Charset encoding) {
+        return findContent(hash, encoding)
+                .orElseThrow(() -> new ContentException("Content with hash " + hash + " is saved, but can't be found"));
+    }
+
+    private UUID saveContentUsingJDBC(final InputStream content, final boolean compressed, final Charset encoding, final MimeType mimeType) {
         UUID uuid = UUID.randomUUID();
-        String sql = "INSERT INTO content (uuid, data, encoding) VALUES(?, ?, ?)";
+        String sql = "INSERT INTO content (uuid, data, compressed, encoding) VALUES(?, ?, ?, ?)";
         Connection con = getConnection();
         try (PreparedStatement statement = con.prepareStatement(sql)) {
             int i = 1;
             statement.setObject(i++, uuid);
             statement.setBinaryStream(i++, content);
+            statement.setBoolean(i++, compressed);
             statement.setString(i++, (encoding == null) ? null : encoding.name());
             statement.executeUpdate();
         } catch (SQLException ex) {
@@ -134,6 +333,69 @@ public class ItemRepository extends Repository<Item> {
         return uuid;
     }
 
+    /**
+     * The hash and size are only known when the data has been streamed by the insert, so they are set in the same
+     * transaction by updating the row without touching the data.
+     *
+     * @return false if the same data has been saved concurrently
+     */
+    private boolean updateContentUsingJDBC(final UUID uuid, final String hash, final long size) {
+        try {
+            return executeUniqueUpdate("UPDATE content SET hash = ?, data_size = ? WHERE uuid = ?", hash, size, uuid);
+        } catch (SQLException ex) {
+            throw new ContentException("Error saving content hash to database", ex);
+        }
+    }
+
+    /**
+     * @return false if the same data has been saved concurrently
+     */
+    private boolean saveStoredContentUsingJDBC(final UUID uuid, final String hash, final long size, final Charset encoding) {
+        String sql = "INSERT INTO content (uuid, hash, data_size, compressed, encoding) VALUES(?, ?, ?, ?, ?)";
+        try {
+            return executeUniqueUpdate(sql, uuid, hash, size, false, (encoding == null) ? null : encoding.name());
+        } catch (SQLException ex) {
+            throw new ContentException("Error saving stored content to database", ex);
+        }
+    }
+
+    /**
+     * Execute an update setting the hash of content. If the same data has been saved concurrently, the update is
+     * rejected by the unique constraint on hash and encoding. The update is then rolled back to a savepoint, so the
+     * transaction can continue using the content already saved.
+     *
+     * @return false if the update was rejected by the unique constraint
+     */
+    private boolean executeUniqueUpdate(final String sql, final Object... params) throws SQLException {
+        Connection con = getConnection();
+        Savepoint savepoint = con.setSavepoint();
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+            statement.executeUpdate();
+        } catch (SQLException ex) {
+            String state = ex.getSQLState();
+            if (state == null || !state.startsWith(INTEGRITY_CONSTRAINT_VIOLATION)) {
+                throw ex;
+            }
+            con.rollback(savepoint);
+            return false;
+        }
+        con.releaseSavepoint(savepoint);
+        return true;
+    }
+
+    private void deleteContentUsingJDBC(final UUID uuid) {
+        String sql = "DELETE FROM content WHERE uuid = ?";
+        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
+            statement.setObject(1, uuid);
+            statement.executeUpdate();
+        } catch (SQLException ex) {
+            throw new ContentException("Error deleting duplicate content from database", ex);
+        }
+    }
+
     private Connection getConnection() {
         return em.unwrap(SessionImpl.class).connection();
     }
@@ -49,14 +49,32 @@ public abstract class Repository<E> {
     public static final String ITEM_FIND_BY_URI = "Item.findByUri";
     public static final String ITEM_FIND_BY_TERM = "Item.findByTerm";
     public static final String CONTENT_GET = "Content.get";
+    public static final String CONTENT_FIND_BY_HASH = "Content.findByHash";
+    public static final String CONTENT_GET_HASH = "Content.getHash";
+    public static final String CONTENT_FIND_UNREFERENCED = "Content.findUnreferenced";
+    public static final String CONTENT_COUNT_BY_HASH = "Content.countByHash";
     public static final String VERSION_GET = "Version.get";
     public static final String EXTERNAL_FILE_GET = "ExternalFile.get";
     public static final String EXTERNAL_FILE_FIND_ALL = "ExternalFile.findAll";
     public static final String EXTERNAL_FILE_FIND_BY_URI = "ExternalFile.findByUri";
     public static final String EXTERNAL_FILE_FIND_ALL_AT_DATE_TIME = "ExternalFile.findAllAt";
     public static final String EXTERNAL_FILE_SCHEDULE = "ExternalFile.schedule";
+    public static final String EXTERNAL_FILE_NEXT_CHANGE = "ExternalFile.nextChange";
     public static final String EXTERNAL_FILE_FIND_ALL_IN_INTERVAL = "ExternalFile.findAllInInterval";
     public static final String EXTERNAL_FILE_FIND_IN_INTERVAL  = "ExternalFile.findInInterval";
+    public static final String EXTERNAL_FILE_FIND_CHANGED = "ExternalFile.findChanged";
+    public static final String DEPENDENCY_GET = "Dependency.get";
+    public static final String DEPENDENCY_FIND_ALL = "Dependency.findAll";
+    public static final String DEPENDENCY_FIND_VERSIONS = "Dependency.findVersions";
+    public static final String DEPENDENCY_FIND_DEPENDENTS = "Dependency.findDependents";
+    public static final String DEPENDENCY_FIND_ITEMS = "Dependency.findItems";
+    public static final String DEPENDENCY_FIND_BY_VERSION = "Dependency.findByVersion";
+    public static final String EXTERNALIZATION_JOB_GET = "ExternalizationJob.get";
+    public static final String EXTERNALIZATION_JOB_FIND_ALL = "ExternalizationJob.findAll";
+    public static final String EXTERNALIZATION_JOB_FIND_BY_STATUS = "ExternalizationJob.findByStatus";
+    public static final String EXTERNALIZATION_JOB_FIND_BY_VERSION = "ExternalizationJob.findByVersion";
+    public static final String EXTERNALIZATION_JOB_FIND_DUE = "ExternalizationJob.findDue";
+    public static final String EXTERNALIZATION_JOB_COUNT_BY_STATUS = "ExternalizationJob.countByStatus";
     public static final String TERM_FIND_ALL = "Term.findAll";
     public static final String TERM_GET = "Term.Get";
     public static final String TERM_FIND_BY_URI = "Term.findByUri";
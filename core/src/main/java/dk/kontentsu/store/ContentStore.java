@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+import dk.kontentsu.configuration.Config;
+import org.aeonbits.owner.ConfigCache;
+
+/**
+ * Store for content data kept outside the database. Data is addressed by its hash, so the database only holds the
+ * metadata and the hash of the content.
+ *
+ * @author Jens Borch Christiansen
+ */
+public interface ContentStore {
+
+    /**
+     * Get the content store configured, if any. Entities can't have the store injected, so the store is found using
+     * the configuration cache.
+     *
+     * @return the configured store, or empty if data should be stored in the database
+     */
+    static Optional<ContentStore> get() {
+        return FileSystemContentStore.get(ConfigCache.getOrCreate(Config.class).contentStorePath());
+    }
+
+    /**
+     * Save data to the store. If data with the same hash is already stored, the data is discarded and the stored data
+     * is marked as saved again.
+     *
+     * @param data the data to save
+     * @return the hash of the data saved
+     * @throws IOException if the data can't be saved
+     */
+    String save(InputStream data) throws IOException;
+
+    /**
+     * Open the data with the given hash.
+     *
+     * @param hash the hash of the data
+     * @return stream to read the data from
+     * @throws IOException if the data can't be read
+     */
+    InputStream open(String hash) throws IOException;
+
+    /**
+     * @param hash the hash of the data
+     * @return the size of the data in bytes
+     * @throws IOException if the data isn't stored
+     */
+    long size(String hash) throws IOException;
+
+    /**
+     * @param hash the hash of the data
+     * @return true if data with the given hash is stored
+     */
+    boolean contains(String hash);
+
+    /**
+     * @param hash the hash of the data
+     * @return the time the data was last saved
+     * @throws IOException if the data isn't stored
+     */
+    Instant lastSaved(String hash) throws IOException;
+
+    /**
+     * Get the path of a file holding the data, if the store keeps data in the local file system - e.g. to hard link
+     * the data when publishing.
+     *
+     * @param hash the hash of the data
+     * @return path of the file holding the data
+     */
+    Optional<Path> getPath(String hash);
+
+    /**
+     * Delete the data with the given hash.
+     *
+     * @param hash the hash of the data
+     * @throws IOException if the data can't be deleted
+     */
+    void delete(String hash) throws IOException;
+
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dk.kontentsu.model.Content;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Content store keeping data in the local file system. Files are named by the hash of the data and sharded in two
+ * levels of directories using the first characters of the hash - e.g. <code>ab/cd/abcd...</code>. The data of stored
+ * files is never changed, so they can be hard linked when publishing. The modification time of a file is the time the
+ * data was last saved.
+ *
+ * @author Jens Borch Christiansen
+ */
+public final class FileSystemContentStore implements ContentStore {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Map<String, FileSystemContentStore> STORES = new ConcurrentHashMap<>();
+    private static final int SHARD_LENGTH = 2;
+
+    private final Path root;
+
+    public FileSystemContentStore(final Path root) {
+        this.root = root;
+    }
+
+    static Optional<ContentStore> get(final String path) {
+        if (path == null || path.trim().isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(STORES.computeIfAbsent(path.trim(), p -> new FileSystemContentStore(Paths.get(p))));
+    }
+
+    private Path resolve(final String hash) {
+        if (hash == null || hash.length() <= 2 * SHARD_LENGTH) {
+            throw new IllegalArgumentException("Invalid content hash " + hash);
+        }
+        return root.resolve(hash.substring(0, SHARD_LENGTH))
+                .resolve(hash.substring(SHARD_LENGTH, 2 * SHARD_LENGTH))
+                .resolve(hash);
+    }
+
+    @Override
+    public String save(final InputStream data) throws IOException {
+        Files.createDirectories(root);
+        Path tmp = Files.createTempFile(root, "content", ".tmp");
+        try {
+            MessageDigest digest = Content.getContentHashDigester();
+            try (InputStream in = new DigestInputStream(data, digest)) {
+                Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            String hash = Content.toHash(digest);
+            Path target = resolve(hash);
+            if (Files.exists(target)) {
+                Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+            } else {
+                Files.createDirectories(target.getParent());
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                    if (!target.toFile().setReadOnly()) {
+                        LOGGER.warn("Unable to make stored content {} read-only", target);
+                    }
+                } catch (FileAlreadyExistsException ex) {
+                    LOGGER.debug("Content {} stored concurrently", hash);
+                }
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public InputStream open(final String hash) throws IOException {
+        return Files.newInputStream(resolve(hash));
+    }
+
+    @Override
+    public long size(final String hash) throws IOException {
+        return Files.size(resolve(hash));
+    }
+
+    @Override
+    public boolean contains(final String hash) {
+        return Files.exists(resolve(hash));
+    }
+
+    @Override
+    public Instant lastSaved(final String hash) throws IOException {
+        return Files.getLastModifiedTime(resolve(hash)).toInstant();
+    }
+
+    @Override
+    public Optional<Path> getPath(final String hash) {
+        Path path = resolve(hash);
+        return Files.exists(path) ? Optional.of(path) : Optional.empty();
+    }
+
+    @Override
+    public void delete(final String hash) throws IOException {
+        Files.deleteIfExists(resolve(hash));
+    }
+
+}
@@ -42,8 +42,9 @@ import javax.inject.Inject;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 
-import dk.kontentsu.externalization.ExternalizerService;
+import dk.kontentsu.externalization.ExternalizationJobService;
 import dk.kontentsu.model.Content;
+import dk.kontentsu.model.ExternalizationJob;
 import dk.kontentsu.model.Host;
 import dk.kontentsu.model.Item;
 import dk.kontentsu.model.Term;
@@ -51,6 +52,8 @@ import dk.kontentsu.model.Version;
 import dk.kontentsu.model.processing.InjectableContentProcessingScope;
 import dk.kontentsu.parsers.ContentParser;
 import dk.kontentsu.parsers.Link;
+import dk.kontentsu.repository.DependencyRepository;
+import dk.kontentsu.repository.ExternalizationJobRepository;
 import dk.kontentsu.repository.HostRepository;
 import dk.kontentsu.repository.ItemRepository;
 import dk.kontentsu.repository.TermRepository;
@@ -79,7 +82,13 @@ public class Uploader {
     private TermRepository termRepo;
 
     @Inject
-    private ExternalizerService externalizer;
+    private DependencyRepository dependencyRepo;
+
+    @Inject
+    private ExternalizationJobRepository jobRepo;
+
+    @Inject
+    private ExternalizationJobService jobService;
 
     @Inject
     private Uploader self;
@@ -89,14 +98,14 @@ public class Uploader {
 
     public UUID upload(@Valid final UploadItem uploadItem) {
         Version version = self.save(uploadItem);
-        externalizer.externalize(version.getUuid());
+        jobService.drain();
         return version.getItem().getUuid();
     }
 
     public UUID uploadSync(@Valid final UploadItem uploadItem) {
         Version version = self.save(uploadItem);
         try {
-            externalizer.externalize(version.getUuid()).get();
+            jobService.execute(version.getUuid()).get();
         } catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
             throw new UploadException("Externalizing version : " + version.getUuid() + " was interrupted", ex);
@@ -117,7 +126,7 @@ public class Uploader {
      */
     public Set<UUID> overwrite(@NotNull final UUID itemId, @Valid final UploadItem uploadItem) {
         Set<UUID> externalized = self.overwriteAndSave(itemId, uploadItem);
-        externalized.forEach(u -> externalizer.externalize(u));
+        jobService.drain();
         return externalized;
     }
 
@@ -125,7 +134,7 @@ public class Uploader {
         Set<UUID> externalized = self.overwriteAndSave(itemId, uploadItem);
         externalized.forEach(u -> {
             try {
-                externalizer.externalize(u).get();
+                jobService.execute(u).get();
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
                 throw new UploadException("Overwriting version : " + u + " was interrupted", ex);
@@ -166,6 +175,10 @@ public class Uploader {
         toAdd.forEach(item::addVersion);
         Version version = addVersion(item, uploadItem);
         addHosts(item, uploadItem);
+        toAdd.forEach(dependencyRepo::index);
+        dependencyRepo.index(version);
+        toAdd.forEach(v -> jobRepo.save(new ExternalizationJob(v)));
+        jobRepo.save(new ExternalizationJob(version));
         toExternalize.add(version.getUuid());
         return toExternalize;
     }
@@ -176,6 +189,8 @@ public class Uploader {
         Version version = addVersion(item, uploadItem);
         addHosts(item, uploadItem);
         itemRepo.save(item);
+        dependencyRepo.index(version);
+        jobRepo.save(new ExternalizationJob(version));
         return version;
     }
 
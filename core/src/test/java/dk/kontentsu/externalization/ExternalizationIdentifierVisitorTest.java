@@ -0,0 +1,95 @@
+package dk.kontentsu.externalization;
+
+import static dk.kontentsu.externalization.ExternalizerServiceTest.content;
+import static dk.kontentsu.externalization.ExternalizerServiceTest.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.kontentsu.model.Interval;
+import dk.kontentsu.model.Item;
+import dk.kontentsu.model.MimeType;
+import dk.kontentsu.model.ReferenceType;
+import dk.kontentsu.model.Term;
+import dk.kontentsu.model.Version;
+import dk.kontentsu.model.processing.InjectableContentProcessingScope;
+import dk.kontentsu.model.processing.ReferenceProcessor;
+import dk.kontentsu.model.processing.TemporalReferenceTree;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link ExternalizationIdentifierVisitor}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class ExternalizationIdentifierVisitorTest {
+
+    private static final ZonedDateTime NOW = ZonedDateTime.now();
+
+    private Version pageVersion;
+
+    @Before
+    public void setUp() throws Exception {
+        Item article = new Item(new Term().append("items").append("article"), MimeType.APPLICATION_JSON_TYPE);
+        article.addVersion(id(Version.builder()
+                .content(content())
+                .from(NOW)
+                .to(NOW.plusDays(10))
+                .build(), 1));
+        article.addVersion(id(Version.builder()
+                .content(content())
+                .from(NOW.plusDays(10))
+                .build(), 2));
+
+        Item contact = new Item(new Term().append("items").append("contact"), MimeType.APPLICATION_JSON_TYPE);
+        contact.addVersion(id(Version.builder()
+                .content(content())
+                .from(NOW)
+                .build(), 3));
+
+        Item page = new Item(new Term().append("items").append("page"), MimeType.APPLICATION_JSON_TYPE);
+        pageVersion = id(Version.builder()
+                .content(content())
+                .reference(article, ReferenceType.COMPOSITION)
+                .reference(contact, ReferenceType.COMPOSITION)
+                .from(NOW)
+                .build(), 4);
+        page.addVersion(pageVersion);
+    }
+
+    @Test
+    public void testContentIdMatchesVisitedTree() {
+        Map<Interval, List<Version>> composed = new HashMap<>();
+        InjectableContentProcessingScope.execute(() -> {
+            ExternalizationIdentifierVisitor visitor = new ExternalizationIdentifierVisitor(new ExternalizationVisitor() {
+                @Override
+                public void visit(final TemporalReferenceTree.Node node) {
+                    //Nothing to render
+                }
+
+                @Override
+                public ExternalizationVisitor.Results getResults() {
+                    return new ExternalizationVisitor.Results(content());
+                }
+            });
+            ReferenceProcessor<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor> processor
+                    = new ReferenceProcessor<>(pageVersion, visitor);
+            List<TemporalReferenceTree<ExternalizationIdentifierVisitor.Results, ExternalizationIdentifierVisitor>> trees
+                    = processor.process((interval, versions) -> {
+                        composed.put(interval, versions);
+                        return true;
+                    });
+
+            assertEquals(2, trees.size());
+            trees.forEach(t -> assertEquals(ExternalizationIdentifierVisitor.getContentId(pageVersion, composed.get(t.getInterval())),
+                    t.getResult().getId()));
+            assertNotEquals(trees.get(0).getResult().getId(), trees.get(1).getResult().getId());
+        });
+    }
+
+}
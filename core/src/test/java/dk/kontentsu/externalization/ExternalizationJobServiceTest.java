@@ -0,0 +1,173 @@
+package dk.kontentsu.externalization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import dk.kontentsu.configuration.Config;
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.ExternalizationJob;
+import dk.kontentsu.model.Version;
+import dk.kontentsu.repository.ExternalizationJobRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Test for {@link ExternalizationJobService}.
+ *
+ * @author Jens Borch Christiansen
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ExternalizationJobServiceTest {
+
+    private static final long RETRY_DELAY = 30;
+    private static final int MAX_ATTEMPTS = 3;
+
+    @Mock
+    private ExternalizationJobRepository jobRepo;
+
+    @Mock
+    private ExternalizerService externalizer;
+
+    @Mock
+    private Config config;
+
+    @InjectMocks
+    private ExternalizationJobService service;
+
+    private ExternalizationJob job;
+
+    private static ExternalizationJob create() {
+        return new ExternalizationJob(Version.builder()
+                .content(new Content("{}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+                .from(ZonedDateTime.now())
+                .build());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Field self = ExternalizationJobService.class.getDeclaredField("self");
+        self.setAccessible(true);
+        self.set(service, service);
+        lenient().when(config.externalizationJobsConcurrency()).thenReturn(1);
+        lenient().when(config.externalizationJobsRetryDelaySeconds()).thenReturn(RETRY_DELAY);
+        lenient().when(config.externalizationJobsMaxAttempts()).thenReturn(MAX_ATTEMPTS);
+        job = create();
+        lenient().when(jobRepo.find(job.getUuid())).thenReturn(Optional.of(job));
+    }
+
+    @Test
+    public void testInitResetsRunning() {
+        job.start();
+        when(jobRepo.findByStatus(ExternalizationJob.Status.RUNNING)).thenReturn(Collections.singletonList(job));
+
+        service.init();
+        assertEquals(ExternalizationJob.Status.PENDING, job.getStatus());
+        assertEquals(1, job.getAttempts());
+    }
+
+    @Test
+    public void testCompleted() {
+        service.init();
+        when(jobRepo.findDue(any(ZonedDateTime.class), anyInt())).thenReturn(Collections.singletonList(job), Collections.emptyList());
+        when(externalizer.externalize(job.getVersion())).thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+
+        service.drain();
+        assertEquals(ExternalizationJob.Status.RUNNING, job.getStatus());
+        verify(jobRepo).delete(job);
+    }
+
+    @Test
+    public void testFailedIsRetried() {
+        service.init();
+        CompletableFuture<List<ExternalFile>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new ExternalizationException("test"));
+        when(jobRepo.findDue(any(ZonedDateTime.class), anyInt())).thenReturn(Collections.singletonList(job), Collections.emptyList());
+        when(externalizer.externalize(job.getVersion())).thenReturn(failed);
+
+        ZonedDateTime before = ZonedDateTime.now();
+        service.drain();
+        assertEquals(ExternalizationJob.Status.PENDING, job.getStatus());
+        assertEquals("test", job.getError());
+        assertFalse(job.getNextAttempt().isBefore(before.plusSeconds(RETRY_DELAY)));
+        assertFalse(job.getNextAttempt().isAfter(ZonedDateTime.now().plusSeconds(RETRY_DELAY)));
+        verify(jobRepo, never()).delete(job);
+    }
+
+    @Test
+    public void testBackoff() {
+        job.start();
+        job.start();
+        ZonedDateTime before = ZonedDateTime.now();
+        service.failed(job.getUuid(), new ExternalizationException("test"));
+        assertFalse(job.getNextAttempt().isBefore(before.plusSeconds(RETRY_DELAY * 2)));
+        assertTrue(job.getNextAttempt().isBefore(before.plusSeconds(RETRY_DELAY * 3)));
+    }
+
+    @Test
+    public void testBackoffCapped() {
+        when(config.externalizationJobsMaxAttempts()).thenReturn(100);
+        for (int i = 0; i < 40; i++) {
+            job.start();
+        }
+        ZonedDateTime before = ZonedDateTime.now();
+        service.failed(job.getUuid(), new ExternalizationException("test"));
+        assertEquals(ExternalizationJob.Status.PENDING, job.getStatus());
+        assertFalse(job.getNextAttempt().isBefore(before.plusSeconds(RETRY_DELAY << 16)));
+        assertTrue(job.getNextAttempt().isBefore(before.plusSeconds(RETRY_DELAY << 17)));
+    }
+
+    @Test
+    public void testDeadLetter() {
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            job.start();
+            service.failed(job.getUuid(), new ExternalizationException("test " + i));
+        }
+        assertEquals(ExternalizationJob.Status.FAILED, job.getStatus());
+        assertEquals("test 2", job.getError());
+        verify(jobRepo, never()).delete(job);
+    }
+
+    @Test
+    public void testExecuteQueuedUntilSlotIsFree() throws Exception {
+        service.init();
+        ExternalizationJob other = create();
+        CompletableFuture<List<ExternalFile>> running = new CompletableFuture<>();
+        when(jobRepo.findDue(any(ZonedDateTime.class), anyInt())).thenReturn(Collections.singletonList(job), Collections.emptyList());
+        when(jobRepo.findByVersion(other.getVersion())).thenReturn(Arrays.asList(other));
+        when(jobRepo.find(other.getUuid())).thenReturn(Optional.of(other));
+        when(externalizer.externalize(job.getVersion())).thenReturn(running);
+        when(externalizer.externalize(other.getVersion())).thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+
+        service.drain();
+        CompletableFuture<List<ExternalFile>> result = service.execute(other.getVersion());
+        assertFalse(result.isDone());
+        assertTrue(other.isPending());
+
+        running.complete(Collections.emptyList());
+        assertTrue(result.get().isEmpty());
+        verify(jobRepo).delete(job);
+        verify(jobRepo).delete(other);
+    }
+
+}
@@ -0,0 +1,123 @@
+package dk.kontentsu.externalization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.Interval;
+import dk.kontentsu.model.Item;
+import dk.kontentsu.model.MimeType;
+import dk.kontentsu.model.ReferenceType;
+import dk.kontentsu.model.Term;
+import dk.kontentsu.model.Version;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for skipping trees already externalized in {@link ExternalizerService}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class ExternalizerServiceTest {
+
+    private static final ZonedDateTime NOW = ZonedDateTime.now();
+    private static final Interval INTERVAL = new Interval(NOW, NOW.plusDays(10));
+
+    private Item page;
+    private Version pageVersion;
+    private Version articleVersion1;
+    private Version articleVersion2;
+    private Version contactVersion;
+    private List<ExternalFile> existing;
+
+    static Version id(final Version version, final int id) throws Exception {
+        Field field = Version.class.getSuperclass().getDeclaredField("id");
+        field.setAccessible(true);
+        field.set(version, id);
+        return version;
+    }
+
+    static Content content() {
+        return new Content("{}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Item article = new Item(new Term().append("items").append("article"), MimeType.APPLICATION_JSON_TYPE);
+        articleVersion1 = id(Version.builder()
+                .content(content())
+                .from(NOW)
+                .to(NOW.plusDays(10))
+                .build(), 1);
+        article.addVersion(articleVersion1);
+        articleVersion2 = id(Version.builder()
+                .content(content())
+                .from(NOW.plusDays(10))
+                .build(), 2);
+        article.addVersion(articleVersion2);
+
+        Item contact = new Item(new Term().append("items").append("contact"), MimeType.APPLICATION_JSON_TYPE);
+        contactVersion = id(Version.builder()
+                .content(content())
+                .from(NOW)
+                .build(), 3);
+        contact.addVersion(contactVersion);
+
+        page = new Item(new Term().append("items").append("page"), MimeType.APPLICATION_JSON_TYPE);
+        pageVersion = id(Version.builder()
+                .content(content())
+                .reference(article, ReferenceType.COMPOSITION)
+                .reference(contact, ReferenceType.COMPOSITION)
+                .from(NOW)
+                .build(), 4);
+        page.addVersion(pageVersion);
+
+        existing = Collections.singletonList(ExternalFile.builder()
+                .item(page)
+                .content(content())
+                .interval(INTERVAL)
+                .externalizationId(ExternalizationIdentifierVisitor.getContentId(pageVersion, Arrays.asList(articleVersion1, contactVersion)))
+                .build());
+    }
+
+    @Test
+    public void testUnchangedTreeSkipped() {
+        Optional<ExternalFile> file = ExternalizerService.findExternalized(existing, pageVersion, INTERVAL,
+                Arrays.asList(contactVersion, articleVersion1));
+        assertTrue(file.isPresent());
+        assertEquals(existing.get(0), file.get());
+    }
+
+    @Test
+    public void testChangedFragmentVersion() {
+        assertFalse(ExternalizerService.findExternalized(existing, pageVersion, INTERVAL,
+                Arrays.asList(articleVersion2, contactVersion)).isPresent());
+    }
+
+    @Test
+    public void testChangedInterval() {
+        assertFalse(ExternalizerService.findExternalized(existing, pageVersion, new Interval(NOW, NOW.plusDays(5)),
+                Arrays.asList(articleVersion1, contactVersion)).isPresent());
+    }
+
+    @Test
+    public void testChangedRootVersion() throws Exception {
+        Version newPageVersion = id(Version.builder()
+                .content(content())
+                .from(NOW.plusDays(20))
+                .build(), 5);
+        assertFalse(ExternalizerService.findExternalized(existing, newPageVersion, INTERVAL,
+                Arrays.asList(articleVersion1, contactVersion)).isPresent());
+    }
+
+}
@@ -0,0 +1,258 @@
+package dk.kontentsu.externalization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.Host;
+import dk.kontentsu.model.Item;
+import dk.kontentsu.model.MimeType;
+import dk.kontentsu.model.Term;
+import dk.kontentsu.repository.ItemRepository;
+import dk.kontentsu.util.DelTreeFileVisitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link HostPublisher}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class HostPublisherTest {
+
+    private Path path;
+    private Host host;
+    private List<ExternalFile> files;
+    private Map<Path, HostPublisher.Manifest> manifest;
+    private Map<UUID, Content> contents;
+    private ItemRepository itemRepo;
+
+    @Before
+    public void setUp() throws Exception {
+        path = Files.createTempDirectory("junit");
+        host = new Host("test", "desc", path.toString());
+        Item item = new Item(Term.parse("uri:/test/file/"), "xl", MimeType.APPLICATION_JSON_TYPE);
+        item.addHost(host);
+        ExternalFile file = ExternalFile.builder()
+                .from(ZonedDateTime.now())
+                .content(new Content("{ \"this\": \"is a test\"}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+                .item(item)
+                .build();
+        files = Collections.singletonList(file);
+        manifest = new ConcurrentHashMap<>();
+        contents = new ConcurrentHashMap<>();
+        contents.put(file.getContent().getUuid(), file.getContent());
+        itemRepo = mock(ItemRepository.class);
+        when(itemRepo.copyContent(any(UUID.class), any(WritableByteChannel.class)))
+                .thenAnswer(i -> contents.get(i.getArgument(0)).copyTo(i.getArgument(1)));
+        when(itemRepo.copyCompressedContent(any(UUID.class), any(WritableByteChannel.class)))
+                .thenAnswer(i -> contents.get(i.getArgument(0)).copyGzipTo(i.getArgument(1)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.walkFileTree(path, new DelTreeFileVisitor());
+        Path generations = path.resolveSibling(path.getFileName() + ".generations");
+        if (Files.exists(generations)) {
+            Files.walkFileTree(generations, new DelTreeFileVisitor());
+        }
+    }
+
+    @Test
+    public void testSkipUnchanged() throws Exception {
+        HostPublisher first = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertEquals(1, first.getWritten());
+        assertEquals(0, first.getSkipped());
+
+        HostPublisher second = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertEquals(0, second.getWritten());
+        assertEquals(1, second.getSkipped());
+
+        manifest.clear();
+        HostPublisher restarted = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertEquals(0, restarted.getWritten());
+        assertEquals(1, restarted.getSkipped());
+    }
+
+    @Test
+    public void testWriteChanged() throws Exception {
+        new HostPublisher(host, files, manifest, itemRepo).publish();
+        Files.write(path.resolve("test/file/file-xl.json"), "changed".getBytes(StandardCharsets.UTF_8));
+
+        HostPublisher publisher = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertEquals(1, publisher.getWritten());
+        assertEquals("{ \"this\": \"is a test\"}", new String(Files.readAllBytes(path.resolve("test/file/file-xl.json")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testPublishCompressed() throws Exception {
+        HostPublisher first = new HostPublisher(host, files, manifest, itemRepo).compressed().publish();
+        assertEquals(2, first.getWritten());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path.resolve("test/file/file-xl.json.gz")))) {
+            assertEquals(files.get(0).getContent().getHash(), Content.hash(in));
+        }
+
+        manifest.clear();
+        HostPublisher restarted = new HostPublisher(host, files, manifest, itemRepo).compressed().publish();
+        assertEquals(0, restarted.getWritten());
+        assertEquals(2, restarted.getSkipped());
+
+        HostPublisher uncompressed = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertEquals(1, uncompressed.getDeleted());
+        assertFalse(path.resolve("test/file/file-xl.json.gz").toFile().exists());
+    }
+
+    @Test
+    public void testDeleted() throws Exception {
+        Files.createDirectories(path.resolve("old"));
+        Files.createFile(path.resolve("old/file.json"));
+        Files.createFile(path.resolve("file.json"));
+
+        HostPublisher publisher = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertEquals(2, publisher.getDeleted());
+        assertFalse(path.resolve("old").toFile().exists());
+    }
+
+    @Test
+    public void testPublishStaged() throws Exception {
+        Files.createFile(path.resolve("file.json"));
+
+        HostPublisher first = new HostPublisher(host, files, manifest, itemRepo).publishStaged();
+        assertEquals(1, first.getWritten());
+        assertEquals(1, first.getDeleted());
+        assertTrue(Files.isSymbolicLink(path));
+        assertTrue(Files.exists(path.resolve("test/file/file-xl.json")));
+        assertFalse(Files.exists(path.resolve("file.json")));
+
+        Path published = path.resolve("test/file/file-xl.json").toRealPath();
+        HostPublisher second = new HostPublisher(host, files, manifest, itemRepo).publishStaged();
+        assertEquals(0, second.getWritten());
+        assertEquals(1, second.getSkipped());
+        Path linked = path.resolve("test/file/file-xl.json").toRealPath();
+        assertNotEquals(published, linked);
+        assertTrue(Files.isSameFile(published, linked));
+    }
+
+    @Test
+    public void testPublishAfterStaged() throws Exception {
+        new HostPublisher(host, files, manifest, itemRepo).publishStaged();
+        Files.createFile(path.resolve("file.json"));
+
+        HostPublisher publisher = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertEquals(1, publisher.getSkipped());
+        assertEquals(1, publisher.getDeleted());
+        assertTrue(Files.isSymbolicLink(path));
+        assertTrue(Files.exists(path.resolve("test/file/file-xl.json")));
+        assertFalse(Files.exists(path.resolve("file.json")));
+    }
+
+    @Test
+    public void testWriteFailed() throws Exception {
+        doThrow(new IOException("test")).when(itemRepo).copyContent(any(UUID.class), any(WritableByteChannel.class));
+
+        HostPublisher publisher = new HostPublisher(host, files, manifest, itemRepo).publish();
+        assertTrue(publisher.isFailed());
+        assertEquals(0, publisher.getWritten());
+        assertTrue(manifest.isEmpty());
+    }
+
+    @Test
+    public void testStagedWriteFailed() throws Exception {
+        new HostPublisher(host, files, manifest, itemRepo).publishStaged();
+        Path current = path.toRealPath();
+        Item item = new Item(Term.parse("uri:/test/other/"), "xl", MimeType.APPLICATION_JSON_TYPE);
+        item.addHost(host);
+        List<ExternalFile> all = new ArrayList<>(files);
+        all.add(ExternalFile.builder()
+                .from(ZonedDateTime.now())
+                .content(new Content("{}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+                .item(item)
+                .build());
+        doThrow(new IOException("test")).when(itemRepo).copyContent(any(UUID.class), any(WritableByteChannel.class));
+
+        HostPublisher publisher = new HostPublisher(host, all, manifest, itemRepo).publishStaged();
+        assertTrue(publisher.isFailed());
+        assertEquals(current, path.toRealPath());
+        assertTrue(Files.exists(current));
+        try (Stream<Path> generations = Files.list(path.resolveSibling(path.getFileName() + ".generations"))) {
+            assertEquals(2, generations.count());
+        }
+    }
+
+    @Test
+    public void testFirstStagedWriteFailed() throws Exception {
+        Files.createFile(path.resolve("file.json"));
+        doThrow(new IOException("test")).when(itemRepo).copyContent(any(UUID.class), any(WritableByteChannel.class));
+
+        HostPublisher publisher = new HostPublisher(host, files, manifest, itemRepo).publishStaged();
+        assertTrue(publisher.isFailed());
+        assertFalse(Files.isSymbolicLink(path));
+        assertTrue(Files.exists(path.resolve("file.json")));
+        try (Stream<Path> generations = Files.list(path.resolveSibling(path.getFileName() + ".generations"))) {
+            assertEquals(0, generations.count());
+        }
+    }
+
+    @Test
+    public void testPruneGenerations() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            new HostPublisher(host, files, manifest, itemRepo).publishStaged();
+        }
+        try (Stream<Path> generations = Files.list(path.resolveSibling(path.getFileName() + ".generations"))) {
+            assertEquals(2, generations.count());
+        }
+    }
+
+    @Test
+    public void testPublishInBatches() throws Exception {
+        Item item = new Item(Term.parse("uri:/test/other/"), "xl", MimeType.APPLICATION_JSON_TYPE);
+        item.addHost(host);
+        List<ExternalFile> all = new ArrayList<>(files);
+        Content content = new Content("{}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+        contents.put(content.getUuid(), content);
+        all.add(ExternalFile.builder()
+                .from(ZonedDateTime.now())
+                .content(content)
+                .item(item)
+                .build());
+        Host broken = new Host("broken", "desc", path.resolve("test/file/file-xl.json").resolve("host").toString());
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            HostPublisher publisher = new HostPublisher(host, all, manifest, itemRepo).publish(pool, 1).join();
+            assertEquals(2, publisher.getWritten());
+            assertFalse(publisher.isFailed());
+            assertTrue(Files.exists(path.resolve("test/other/other-xl.json")));
+
+            assertTrue(new HostPublisher(broken, all, manifest, itemRepo).publishStaged(pool, 1).join().isFailed());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
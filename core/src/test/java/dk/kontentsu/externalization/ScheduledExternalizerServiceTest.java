@@ -1,20 +1,39 @@
 package dk.kontentsu.externalization;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 
-import javax.ejb.ScheduleExpression;
 import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 
+import dk.kontentsu.configuration.Config;
 import dk.kontentsu.model.Content;
 import dk.kontentsu.model.ExternalFile;
 import dk.kontentsu.model.Host;
@@ -22,6 +41,7 @@ import dk.kontentsu.model.Item;
 import dk.kontentsu.model.MimeType;
 import dk.kontentsu.model.Term;
 import dk.kontentsu.repository.ExternalFileRepository;
+import dk.kontentsu.repository.ItemRepository;
 import dk.kontentsu.util.DelTreeFileVisitor;
 import org.junit.After;
 import org.junit.Before;
@@ -29,6 +49,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
 /**
@@ -39,17 +60,38 @@ import org.mockito.junit.MockitoJUnitRunner;
 @RunWith(MockitoJUnitRunner.class)
 public class ScheduledExternalizerServiceTest {
 
+    private static final ZonedDateTime TIME = ZonedDateTime.of(2016, 10, 12, 10, 5, 42, 0, ZoneId.systemDefault());
+
     @Mock
     private ExternalFileRepository fileRepo;
 
+    @Mock
+    private ItemRepository itemRepo;
+
     @Mock
     private Timer timer;
 
+    @Mock
+    private Config config;
+
+    @Mock
+    private ManagedThreadFactory threadFactory;
+
+    @Mock
+    private TimerService timerService;
+
+    @Spy
+    private PublishedFiles publishedFiles;
+
     @InjectMocks
     private ScheduledExternalizerService service;
 
     private Path path;
 
+    private ExternalFile file;
+
+    private final List<Timer> timers = new ArrayList<>();
+
     @Before
     public void setUp() throws Exception {
         path = Files.createTempDirectory("junit");
@@ -59,7 +101,7 @@ public class ScheduledExternalizerServiceTest {
         Item item = new Item(path, "xl", MimeType.APPLICATION_JSON_TYPE);
         item.addHost(host);
         Content content = new Content("{ \"this\": \"is a test\"}".getBytes(), Charset.defaultCharset());
-        ExternalFile file = ExternalFile.builder()
+        file = ExternalFile.builder()
                 .from(ZonedDateTime.now())
                 .content(content)
                 .item(item)
@@ -67,19 +109,125 @@ public class ScheduledExternalizerServiceTest {
         List<ExternalFile> list = new ArrayList<>(1);
         list.add(file);
         when(fileRepo.findAll(any(ZonedDateTime.class))).thenReturn(list);
-        when(timer.getSchedule()).thenReturn(new ScheduleExpression().year(2016).month(10).dayOfMonth(12).hour(10).minute(5).second(42));
+        lenient().when(itemRepo.copyContent(any(UUID.class), any(WritableByteChannel.class))).thenAnswer(i -> content.copyTo(i.getArgument(1)));
+        when(config.externalizationPublishPoolSize()).thenReturn(2);
+        when(config.externalizationPublishBatchSize()).thenReturn(1);
+        when(threadFactory.newThread(any(Runnable.class))).thenAnswer(i -> new Thread((Runnable) i.getArgument(0)));
+        when(timerService.createSingleActionTimer(any(Date.class), any(TimerConfig.class))).thenAnswer(i -> {
+            Timer t = mock(Timer.class, withSettings().lenient());
+            when(t.getInfo()).thenReturn(((TimerConfig) i.getArgument(1)).getInfo());
+            timers.add(t);
+            return t;
+        });
+        service.init();
     }
 
     @After
     public void tearDown() throws Exception {
+        service.destroy();
         Files.walkFileTree(path, new DelTreeFileVisitor());
     }
 
     @Test
     public void testExecute() {
+        when(timer.getInfo()).thenReturn(TIME);
         service.execute(timer);
         assertTrue(path.resolve("test/file/file-xl.json").toFile().exists());
         assertFalse(path.resolve("delete").toFile().exists());
     }
 
+    @Test
+    public void testFindPublished() throws Exception {
+        assertFalse(publishedFiles.find(file).isPresent());
+        when(timer.getInfo()).thenReturn(TIME);
+        service.execute(timer);
+        Path published = path.resolve("test/file/file-xl.json");
+        assertEquals(Optional.of(published), publishedFiles.find(file));
+
+        Files.write(published, "changed".getBytes());
+        assertFalse(publishedFiles.find(file).isPresent());
+    }
+
+    @Test
+    public void testDeleteDirectories() throws Exception {
+        Files.createDirectories(path.resolve("old/dir"));
+        Files.createFile(path.resolve("old/dir/file.json"));
+        Files.createDirectories(path.resolve("test/file"));
+        Files.createFile(path.resolve("test/file/old.json"));
+        when(timer.getInfo()).thenReturn(TIME);
+        service.execute(timer);
+        assertTrue(path.resolve("test/file/file-xl.json").toFile().exists());
+        assertFalse(path.resolve("test/file/old.json").toFile().exists());
+        assertFalse(path.resolve("old").toFile().exists());
+    }
+
+    @Test
+    public void testSchedule() {
+        ZonedDateTime later = ZonedDateTime.now().plusHours(2);
+        service.schedule(Arrays.asList(later, later.plusHours(1), ZonedDateTime.now().minusHours(1)));
+        service.schedule(Collections.singletonList(later.withZoneSameInstant(ZoneOffset.UTC)));
+        assertEquals(1, timers.size());
+
+        service.execute(timers.get(0));
+        assertEquals(2, timers.size());
+        assertEquals(later, timers.get(1).getInfo());
+        assertTrue(path.resolve("test/file/file-xl.json").toFile().exists());
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        when(config.externalizationPublishDelta()).thenReturn(true);
+        when(config.externalizationPublishReconcileMinutes()).thenReturn(60L);
+        when(timer.getInfo()).thenReturn(TIME);
+        service.execute(timer);
+        assertTrue(path.resolve("test/file/file-xl.json").toFile().exists());
+
+        file.delete();
+        Files.createFile(path.resolve("keep"));
+        when(fileRepo.findChanged(any(ZonedDateTime.class), any(ZonedDateTime.class), any(ZonedDateTime.class))).thenReturn(Collections.singletonList(file));
+        when(fileRepo.findByUri(any(Item.URI.class), any(ZonedDateTime.class))).thenReturn(Optional.empty());
+        service.execute(timer);
+        assertFalse(path.resolve("test/file/file-xl.json").toFile().exists());
+        assertTrue(path.resolve("keep").toFile().exists());
+    }
+
+    @Test
+    public void testDeltaAfterFailure() throws Exception {
+        when(config.externalizationPublishDelta()).thenReturn(true);
+        when(config.externalizationPublishReconcileMinutes()).thenReturn(60L);
+        when(timer.getInfo()).thenReturn(TIME);
+        service.execute(timer);
+        Files.delete(path.resolve("test/file/file-xl.json"));
+
+        doThrow(new IOException("test")).when(itemRepo).copyContent(any(UUID.class), any(WritableByteChannel.class));
+        when(fileRepo.findChanged(any(ZonedDateTime.class), any(ZonedDateTime.class), any(ZonedDateTime.class))).thenReturn(Collections.singletonList(file));
+        when(fileRepo.findByUri(any(Item.URI.class), any(ZonedDateTime.class))).thenReturn(Optional.of(file));
+        service.execute(timer);
+        assertFalse(path.resolve("test/file/file-xl.json").toFile().exists());
+
+        service.execute(timer);
+        verify(fileRepo, times(2)).findAll(any(ZonedDateTime.class));
+        verify(fileRepo, times(1)).findChanged(any(ZonedDateTime.class), any(ZonedDateTime.class), any(ZonedDateTime.class));
+    }
+
+    @Test
+    public void testDeltaAfterFailedFullPublish() throws Exception {
+        when(config.externalizationPublishDelta()).thenReturn(true);
+        when(config.externalizationPublishReconcileMinutes()).thenReturn(60L);
+        when(timer.getInfo()).thenReturn(TIME);
+        doThrow(new IOException("test")).when(itemRepo).copyContent(any(UUID.class), any(WritableByteChannel.class));
+        service.execute(timer);
+        assertFalse(path.resolve("test/file/file-xl.json").toFile().exists());
+
+        lenient().doAnswer(i -> file.getContent().copyTo(i.getArgument(1))).when(itemRepo).copyContent(any(UUID.class), any(WritableByteChannel.class));
+        service.execute(timer);
+        assertTrue(path.resolve("test/file/file-xl.json").toFile().exists());
+        verify(fileRepo, times(2)).findAll(any(ZonedDateTime.class));
+
+        when(fileRepo.findChanged(any(ZonedDateTime.class), any(ZonedDateTime.class), any(ZonedDateTime.class))).thenReturn(Collections.emptyList());
+        service.execute(timer);
+        verify(fileRepo, times(2)).findAll(any(ZonedDateTime.class));
+        verify(fileRepo, times(1)).findChanged(any(ZonedDateTime.class), any(ZonedDateTime.class), any(ZonedDateTime.class));
+    }
+
 }
@@ -1,9 +1,17 @@
 
 package dk.kontentsu.model;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
 
@@ -18,7 +26,7 @@ public class ContentTest {
     public void testByteArrayHashAndSize() {
         final Charset charset = Charset.forName("UTF-8");
         Content content = new Content("Test test".getBytes(charset), charset);
-        assertEquals("180fed764dbd593f1ea45b63b13d7e69", content.getHash());
+        assertEquals("991823ca812d16afa97d805780d0b8fe52a4cb094420d943e5c4a92918f827bc", content.getHash());
         assertEquals(9, content.getSize());
     }
 
@@ -27,6 +35,36 @@ public class ContentTest {
         final Charset charset = Charset.forName("UTF-8");
         final byte[] data = "Test test".getBytes(charset);
         Content content = new Content(data, charset);
-        assertEquals("180fed764dbd593f1ea45b63b13d7e69", content.getHash());
+        assertEquals("991823ca812d16afa97d805780d0b8fe52a4cb094420d943e5c4a92918f827bc", content.getHash());
+    }
+
+    @Test
+    public void testCopyTo() throws Exception {
+        final Charset charset = Charset.forName("UTF-8");
+        byte[] data = new byte[20000];
+        Arrays.fill(data, (byte) 'a');
+        Content content = new Content(data, charset);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, content.copyTo(Channels.newChannel(out)));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(new String(data, charset), content.getData());
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        final Charset charset = Charset.forName("UTF-8");
+        byte[] data = new byte[20000];
+        Arrays.fill(data, (byte) 'a');
+        Content content = new Content(data, charset, true);
+        assertTrue(content.isCompressed());
+        assertEquals(data.length, content.getSize());
+        assertEquals(new String(data, charset), content.getData());
+        assertEquals(new Content(data, charset, false).getHash(), content.getHash());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(content.copyCompressedTo(Channels.newChannel(out)) < data.length / 10);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals(Content.hash(new ByteArrayInputStream(data)), Content.hash(in));
+        }
     }
 }
@@ -62,6 +62,15 @@ public class IntervalTest {
         assertTrue(nowMax.overlaps(plus4daysPlus8days));
     }
 
+    @Test
+    public void testIncludes() {
+        Interval interval = new Interval(NOW, NOW.plusDays(1));
+        assertTrue(interval.includes(NOW));
+        assertTrue(interval.includes(NOW.plusHours(1)));
+        assertFalse(interval.includes(NOW.plusDays(1)));
+        assertFalse(interval.includes(NOW.minusSeconds(1)));
+    }
+
     @Test
     public void testInvalid() {
         Interval invalid = new Interval(NOW, NOW);
@@ -39,12 +39,14 @@ public class ReferenceProcessorTest {
 
     private Item page;
     private Version pageVersion;
+    private Item article1;
+    private Item article2;
 
     @Before
     public void setUp() throws Exception {
         ContentTestData data = new ContentTestData();
         Term path = new Term().append("items").append("article2");
-        Item article1 = new Item(path, MimeType.APPLICATION_JSON_TYPE);
+        article1 = new Item(path, MimeType.APPLICATION_JSON_TYPE);
         Version articleVersion1 = Version.builder()
                 .content(new Content(data.getArticle(1), StandardCharsets.UTF_8))
                 .from(ZonedDateTime.of(LocalDateTime.MIN, ZoneId.systemDefault()))
@@ -52,7 +54,7 @@ public class ReferenceProcessorTest {
                 .build();
         article1.addVersion(articleVersion1);
 
-        Item article2 = new Item(path, MimeType.APPLICATION_JSON_TYPE);
+        article2 = new Item(path, MimeType.APPLICATION_JSON_TYPE);
         Version articleVersion2 = Version.builder()
                 .content(new Content(data.getArticle(2), StandardCharsets.UTF_8))
                 .from(NOW.plusDays(15))
@@ -99,4 +101,41 @@ public class ReferenceProcessorTest {
         });
     }
 
+    @Test
+    public void testSplitIntervals() throws Exception {
+        ContentTestData data = new ContentTestData();
+        Term contactPath = new Term().append("items").append("contact");
+        Item contact = new Item(contactPath, MimeType.APPLICATION_JSON_TYPE);
+        contact.addVersion(Version.builder()
+                .content(new Content(data.getContact(), StandardCharsets.UTF_8))
+                .from(NOW)
+                .to(NOW.plusDays(5))
+                .build());
+        contact.addVersion(Version.builder()
+                .content(new Content(data.getContact(), StandardCharsets.UTF_8))
+                .from(NOW.plusDays(5))
+                .build());
+
+        Term pagePath = new Term().append("items").append("page-split");
+        Item splitPage = new Item(pagePath, MimeType.APPLICATION_JSON_TYPE);
+        Version splitPageVersion = Version.builder()
+                .from(NOW)
+                .content(new Content(data.getSimplePage(), StandardCharsets.UTF_8))
+                .reference(article1, ReferenceType.COMPOSITION)
+                .reference(article2, ReferenceType.COMPOSITION)
+                .reference(contact, ReferenceType.COMPOSITION)
+                .build();
+        splitPage.addVersion(splitPageVersion);
+
+        InjectableContentProcessingScope.execute(() -> {
+            ReferenceProcessor<TestVisitor.TestResults, TestVisitor> processor = new ReferenceProcessor<>(splitPageVersion, visitor);
+            List<TemporalReferenceTree<TestVisitor.TestResults, TestVisitor>> result = processor.process();
+
+            assertEquals(3, result.size());
+            assertTrue(result.stream().anyMatch(n -> n.getInterval().equals(new Interval(NOW, NOW.plusDays(5)))));
+            assertTrue(result.stream().anyMatch(n -> n.getInterval().equals(new Interval(NOW.plusDays(5), NOW.plusDays(10)))));
+            assertTrue(result.stream().anyMatch(n -> n.getInterval().equals(new Interval(NOW.plusDays(15)))));
+        });
+    }
+
 }
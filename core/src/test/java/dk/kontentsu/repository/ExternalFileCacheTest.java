@@ -0,0 +1,112 @@
+package dk.kontentsu.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Optional;
+
+import javax.persistence.NoResultException;
+
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.ExternalFile;
+import dk.kontentsu.model.Item;
+import dk.kontentsu.model.MimeType;
+import dk.kontentsu.model.Term;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Test for {@link ExternalFileCache}.
+ *
+ * @author Jens Borch Christiansen
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ExternalFileCacheTest {
+
+    private static final Item.URI URI = new Item.URI("test/page/page-xl");
+
+    @Mock
+    private ExternalFileRepository repo;
+
+    private ExternalFileCache cache;
+
+    private ExternalFile file;
+
+    @Before
+    public void setUp() {
+        cache = new ExternalFileCache(repo, 10);
+        Item item = new Item(Term.parse("uri:/test/page/"), "xl", MimeType.APPLICATION_JSON_TYPE);
+        file = ExternalFile.builder()
+                .from(ZonedDateTime.now().minusDays(1))
+                .content(new Content("{}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+                .item(item)
+                .build();
+        lenient().when(repo.getByUri(eq(URI), any(ZonedDateTime.class))).thenReturn(file);
+    }
+
+    @Test
+    public void testCached() {
+        when(repo.findNextChange(any(ZonedDateTime.class))).thenReturn(Optional.empty());
+        assertSame(file, cache.getByUri("test/page/page-xl", null));
+        assertSame(file, cache.getByUri(URI, null));
+        assertSame(file, cache.getByUri(URI, ZonedDateTime.now().plusDays(1)));
+        assertEquals(1, cache.size());
+        verify(repo, times(1)).getByUri(eq(URI), any(ZonedDateTime.class));
+    }
+
+    @Test
+    public void testNotCachedAfterNextChange() {
+        ZonedDateTime next = ZonedDateTime.now().plusHours(1);
+        when(repo.findNextChange(any(ZonedDateTime.class))).thenReturn(Optional.of(next));
+        cache.getByUri(URI, null);
+        cache.getByUri(URI, next);
+        cache.getByUri(URI, next.plusHours(1));
+        cache.getByUri(URI, ZonedDateTime.now().minusDays(1));
+        verify(repo, times(4)).getByUri(eq(URI), any(ZonedDateTime.class));
+        cache.getByUri(URI, null);
+        verify(repo, times(4)).getByUri(eq(URI), any(ZonedDateTime.class));
+    }
+
+    @Test
+    public void testEvict() {
+        ZonedDateTime next = ZonedDateTime.now().plusHours(2);
+        when(repo.findNextChange(any(ZonedDateTime.class))).thenReturn(Optional.of(next));
+        cache.getByUri(URI, null);
+        cache.evict(new ExternalFileCache.Changed(URI, Collections.singleton(next.minusHours(1))));
+        assertEquals(0, cache.size());
+        cache.getByUri(URI, null);
+        cache.getByUri(URI, next.minusMinutes(30));
+        verify(repo, times(3)).getByUri(eq(URI), any(ZonedDateTime.class));
+    }
+
+    @Test
+    public void testNextChangeDiscardedIfChanged() {
+        when(repo.findNextChange(any(ZonedDateTime.class))).thenAnswer(i -> {
+            cache.evict(new ExternalFileCache.Changed(URI, Collections.emptySet()));
+            return Optional.empty();
+        }).thenReturn(Optional.empty());
+        assertSame(file, cache.getByUri(URI, null));
+        assertEquals(0, cache.size());
+        assertSame(file, cache.getByUri(URI, null));
+        assertEquals(1, cache.size());
+        verify(repo, times(2)).findNextChange(any(ZonedDateTime.class));
+    }
+
+    @Test(expected = NoResultException.class)
+    public void testIllegalUri() {
+        cache.getByUri("/", null);
+    }
+
+}
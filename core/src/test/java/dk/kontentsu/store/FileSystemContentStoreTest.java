@@ -0,0 +1,86 @@
+package dk.kontentsu.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.stream.Stream;
+
+import dk.kontentsu.util.DelTreeFileVisitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link FileSystemContentStore}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class FileSystemContentStoreTest {
+
+    private static final String HASH = "991823ca812d16afa97d805780d0b8fe52a4cb094420d943e5c4a92918f827bc";
+
+    private Path path;
+    private ContentStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        path = Files.createTempDirectory("junit");
+        store = new FileSystemContentStore(path);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.walkFileTree(path, new DelTreeFileVisitor());
+    }
+
+    private static InputStream data() {
+        return new ByteArrayInputStream("Test test".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSave() throws Exception {
+        assertEquals(HASH, store.save(data()));
+        assertEquals(HASH, store.save(data()));
+        assertTrue(store.contains(HASH));
+        assertEquals(9, store.size(HASH));
+        assertEquals(path.resolve("99/18").resolve(HASH), store.getPath(HASH).get());
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(store.open(HASH), StandardCharsets.UTF_8))) {
+            assertEquals("Test test", in.readLine());
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        store.save(data());
+        store.delete(HASH);
+        assertFalse(store.contains(HASH));
+        assertFalse(store.getPath(HASH).isPresent());
+    }
+
+    @Test
+    public void testLastSaved() throws Exception {
+        store.save(data());
+        Path file = store.getPath(HASH).get();
+        Instant saved = Instant.now().minus(1, ChronoUnit.HOURS);
+        Files.setLastModifiedTime(file, FileTime.from(saved));
+        assertEquals(saved.toEpochMilli(), store.lastSaved(HASH).toEpochMilli());
+
+        store.save(data());
+        assertTrue(store.lastSaved(HASH).isAfter(saved));
+    }
+
+}
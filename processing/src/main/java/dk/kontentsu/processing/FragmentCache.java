@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.processing;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kontentsu.configuration.Config;
+import dk.kontentsu.jackson.ObjectMapperFactory;
+import dk.kontentsu.model.Version;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache of parsed JSON fragments shared by the externalization visitors, so that a version composed into many pages or
+ * intervals only is parsed once. Versions are never changed once created, so the parsed content can be cached using
+ * the UUID of the version.
+ *
+ * The cache is bounded by the estimated memory used by the parsed fragments. The least recently used fragments are
+ * evicted when the cache is full, and fragments larger than the cache are not cached at all.
+ *
+ * The cached nodes must not be modified - use {@link JsonNode#deepCopy()} if the fragment needs to be changed.
+ *
+ * @author Jens Borch Christiansen
+ */
+@ApplicationScoped
+public class FragmentCache {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int REFERENCE_SIZE = 8;
+    private static final int NODE_SIZE = 16;
+    private static final int CONTAINER_SIZE = 64;
+    private static final int ENTRY_SIZE = 48;
+
+    private final ObjectMapper mapper = ObjectMapperFactory.create();
+
+    private final Map<UUID, Entry> fragments = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;
+
+    private long bytes;
+
+    @Inject
+    private Config config;
+
+    public FragmentCache() {
+        //Needed by CDI
+    }
+
+    FragmentCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @PostConstruct
+    public void init() {
+        maxBytes = config.externalizationFragmentCacheBytes();
+        LOGGER.info("Caching up to {} bytes of parsed JSON fragments", maxBytes);
+    }
+
+    /**
+     * Get the parsed content of a version.
+     *
+     * @param version the version to get the content for
+     * @return the parsed content, which must not be modified
+     * @throws IOException if the content can't be parsed
+     */
+    public JsonNode get(final Version version) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = fragments.get(version.getUuid());
+        }
+        if (entry == null) {
+            LOGGER.debug("Parsing content of version {}", version.getUuid());
+            JsonNode node = mapper.readTree(version.getContent().getDataAsBinaryStream());
+            entry = new Entry(node, estimate(node));
+            put(version.getUuid(), entry);
+        }
+        return entry.node;
+    }
+
+    private synchronized void put(final UUID version, final Entry entry) {
+        if (entry.size > maxBytes) {
+            LOGGER.debug("Not caching content of version {} estimated to {} bytes", version, entry.size);
+            return;
+        }
+        Entry old = fragments.put(version, entry);
+        bytes += entry.size - (old == null ? 0 : old.size);
+        Iterator<Entry> i = fragments.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= i.next().size;
+            i.remove();
+        }
+    }
+
+    /**
+     * Estimate the memory used by a parsed JSON tree. Strings are counted with two bytes per character.
+     *
+     * @param node the tree to estimate the size of
+     * @return estimated size in bytes
+     */
+    static long estimate(final JsonNode node) {
+        long size;
+        if (node.isObject()) {
+            size = CONTAINER_SIZE;
+            Iterator<Map.Entry<String, JsonNode>> i = node.fields();
+            while (i.hasNext()) {
+                Map.Entry<String, JsonNode> field = i.next();
+                size += ENTRY_SIZE + 2L * field.getKey().length() + estimate(field.getValue());
+            }
+        } else if (node.isArray()) {
+            size = CONTAINER_SIZE;
+            for (JsonNode element : node) {
+                size += REFERENCE_SIZE + estimate(element);
+            }
+        } else if (node.isTextual()) {
+            size = CONTAINER_SIZE + 2L * node.textValue().length();
+        } else {
+            size = NODE_SIZE;
+        }
+        return size;
+    }
+
+    public synchronized int size() {
+        return fragments.size();
+    }
+
+    /**
+     * @return estimated number of bytes used by the cached fragments
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Parsed fragment with its estimated size.
+     */
+    private static class Entry {
+
+        final JsonNode node;
+        final long size;
+
+        Entry(final JsonNode node, final long size) {
+            this.node = node;
+            this.size = size;
+        }
+
+    }
+
+}
@@ -32,6 +32,7 @@ import static dk.kontentsu.processing.HalJsonContent.JSON_SELF_LINK;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -56,7 +57,8 @@ import dk.kontentsu.spi.ContentProcessingMimeType;
 import dk.kontentsu.spi.ContentProcessingScoped;
 
 /**
- * Tree visitor for creating external HAL+JSON page content.
+ * Tree visitor for creating external HAL+JSON page content. The page is written using a streaming parser, where the
+ * content and links of the composed versions are written directly into the page.
  *
  * @author Jens Borch Christiansen
  */
@@ -64,8 +66,8 @@ import dk.kontentsu.spi.ContentProcessingScoped;
 @ContentProcessingMimeType({"application/hal+json"})
 public class HalJsonExternalizationVisitor extends ExternalizationVisitor {
 
-    private JsonNode pageNode;
-    private JsonNode contentNode;
+    private JsonNode compositionNode;
+    private JsonComposer composer;
     private final Counter counter;
 
     private final ObjectMapper mapper;
@@ -73,6 +75,9 @@ public class HalJsonExternalizationVisitor extends ExternalizationVisitor {
     @Inject
     private Content content;
 
+    @Inject
+    private FragmentCache cache;
+
     public HalJsonExternalizationVisitor() {
         this.counter = new Counter();
         this.mapper = ObjectMapperFactory.create();
@@ -81,8 +86,8 @@ public class HalJsonExternalizationVisitor extends ExternalizationVisitor {
     @PostConstruct
     public void init() {
         try {
-            pageNode = mapper.readTree(content.getDataAsBinaryStream());
-            contentNode = findOrCreateExternalContentNode(pageNode);
+            compositionNode = JsonComposer.findPath(mapper, content.getDataAsBinaryStream(), JSON_LINKS).findPath(JSON_COMPOSITION);
+            composer = new JsonComposer(mapper, JSON_CONTENT).links(JSON_LINKS, Collections.singleton(JSON_COMPOSITION));
         } catch (IOException ex) {
             throw new ExternalizationException(getErrorMsg(), ex);
         }
@@ -90,9 +95,12 @@ public class HalJsonExternalizationVisitor extends ExternalizationVisitor {
 
     @Override
     public ExternalizationVisitor.Results getResults() {
-        removeComposition(pageNode);
-        Content result = new Content(pageNode.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
-        return new ExternalizationVisitor.Results(result);
+        try {
+            Content result = new Content(composer.write(content.getDataAsBinaryStream()), StandardCharsets.UTF_8);
+            return new ExternalizationVisitor.Results(result);
+        } catch (IOException ex) {
+            throw new ExternalizationException(getErrorMsg(), ex);
+        }
     }
 
     private String getErrorMsg() {
@@ -103,36 +111,27 @@ public class HalJsonExternalizationVisitor extends ExternalizationVisitor {
     public void visit(final TemporalReferenceTree.Node node) {
         try {
             if (!node.isRoot()) {
-                JsonNode newContentNode = mapper.readTree(node.getVersion().getContent().getDataAsBinaryStream());
-                Map.Entry<String, JsonNode> parentNode = getContentNodeTypes(pageNode, node.getVersion());
-                updateLinksInExternalContent(pageNode, newContentNode, parentNode.getKey(), counter);
-                addContent2ExternalContent(contentNode, newContentNode, parentNode);
+                JsonNode newContentNode = cache.get(node.getVersion()).deepCopy();
+                Map.Entry<String, JsonNode> parentNode = getContentNodeTypes(node.getVersion());
+                updateLinksInExternalContent(newContentNode, parentNode.getKey(), counter);
+                composer.compose(parentNode.getKey(), parentNode.getValue().isArray(), g -> mapper.writeTree(g, newContentNode));
             }
         } catch (IOException ex) {
             throw new ExternalizationException(getErrorMsg(), ex);
         }
     }
 
-    private void removeComposition(final JsonNode pageNode) {
-        JsonNode tmp = pageNode.findPath(JSON_LINKS);
-        if (tmp instanceof ObjectNode) {
-            ObjectNode links = (ObjectNode) tmp;
-            links.remove(JSON_COMPOSITION);
-        }
-    }
-
-    private void updateLinksInExternalContent(final JsonNode external,
-            final JsonNode newContentNode,
+    private void updateLinksInExternalContent(final JsonNode newContentNode,
             final String type,
             final Counter counter) {
-        ObjectNode linksNodeToUpdate = (ObjectNode) external.findPath(JSON_LINKS);
         JsonNode linksNode = newContentNode.findPath(JSON_LINKS);
 
         Consumer<Map.Entry<String, JsonNode>> linksUpdater = (Map.Entry<String, JsonNode> node) -> {
             if (node.getValue().get(JSON_HREF) != null && !node.getKey().equals(JSON_SELF_LINK)) {
                 String newRef = type + counter.get(type) + "-" + node.getKey();
-                ObjectNode href = linksNodeToUpdate.with(newRef);
+                ObjectNode href = mapper.createObjectNode();
                 href.set(JSON_HREF, node.getValue().get(JSON_HREF));
+                composer.link(newRef, href);
 
                 updateContentNodeRefs(newContentNode, node.getKey(), newRef);
             }
@@ -152,20 +151,7 @@ public class HalJsonExternalizationVisitor extends ExternalizationVisitor {
                 .forEach(n -> ((ObjectNode) n).put(JSON_REF, newName));
     }
 
-    private void addContent2ExternalContent(final JsonNode externalContentNode,
-            final JsonNode newContentNode,
-            final Map.Entry<String, JsonNode> parentNode) {
-        String propertyName = parentNode.getKey();
-        ObjectNode tmpContentNode = (ObjectNode) externalContentNode;
-        if (parentNode.getValue().isArray()) {
-            tmpContentNode.withArray(propertyName).add(newContentNode);
-        } else {
-            tmpContentNode.set(propertyName, newContentNode);
-        }
-    }
-
-    private Map.Entry<String, JsonNode> getContentNodeTypes(final JsonNode content, final Version version) {
-        JsonNode compositionNode = content.findPath(JSON_LINKS).findPath(JSON_COMPOSITION);
+    private Map.Entry<String, JsonNode> getContentNodeTypes(final Version version) {
         Iterator<Map.Entry<String, JsonNode>> it = compositionNode.fields();
         while (it.hasNext()) {
             Map.Entry<String, JsonNode> parent = it.next();
@@ -180,14 +166,6 @@ public class HalJsonExternalizationVisitor extends ExternalizationVisitor {
         throw new ExternalizationException("Did not find composition with URI " + version.getItem().getUri().toString() + " in content");
     }
 
-    private JsonNode findOrCreateExternalContentNode(final JsonNode node) {
-        JsonNode externalContentNode = node.findPath(JSON_CONTENT);
-        if (externalContentNode.isMissingNode()) {
-            externalContentNode = node.with(JSON_CONTENT);
-        }
-        return externalContentNode;
-    }
-
     /**
      * Counter for creating unique link names in finale "page"
      */
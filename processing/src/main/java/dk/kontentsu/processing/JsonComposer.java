@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.processing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+/**
+ * Streaming composer for JSON pages. The page is copied token by token to the output, and the content of the composed
+ * fragments is written into the external content node when it is reached - i.e. the page is never parsed to a tree.
+ * The composed page itself is written to a buffer, as the content created from it needs the complete data.
+ *
+ * The external content node and the links node are the first object fields with the given names found in the page,
+ * corresponding to what {@link JsonNode#findPath(String)} would find. If the page has no content node, it is added to
+ * the page root.
+ *
+ * @author Jens Borch Christiansen
+ */
+final class JsonComposer {
+
+    private final ObjectMapper mapper;
+    private final String contentField;
+    private final Map<String, Slot> slots = new LinkedHashMap<>();
+
+    private String linksField;
+    private Set<String> removedLinks = Collections.emptySet();
+    private final Map<String, JsonNode> links = new LinkedHashMap<>();
+
+    private boolean contentWritten;
+    private boolean linksWritten;
+
+    JsonComposer(final ObjectMapper mapper, final String contentField) {
+        this.mapper = mapper;
+        this.contentField = contentField;
+    }
+
+    /**
+     * Find the first field with a given name in a JSON document, without parsing the rest of the document to a tree.
+     *
+     * @param mapper the mapper used for parsing the field value
+     * @param in the JSON document
+     * @param field name of the field to find
+     * @return the value of the field or a missing node if not found
+     */
+    static JsonNode findPath(final ObjectMapper mapper, final InputStream in, final String field) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            JsonToken token = parser.nextToken();
+            while (token != null) {
+                if (token == JsonToken.FIELD_NAME && field.equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    return parser.readValueAsTree();
+                }
+                token = parser.nextToken();
+            }
+        }
+        return MissingNode.getInstance();
+    }
+
+    /**
+     * Handle the links node of the page - i.e. remove some of the existing links and add new links.
+     *
+     * @param field name of the links node
+     * @param removed names of links to remove
+     * @return this composer
+     */
+    JsonComposer links(final String field, final Set<String> removed) {
+        this.linksField = field;
+        this.removedLinks = new HashSet<>(removed);
+        return this;
+    }
+
+    /**
+     * Add a link to the links node of the page, replacing any existing link with the same name.
+     */
+    JsonComposer link(final String name, final JsonNode link) {
+        links.put(name, link);
+        return this;
+    }
+
+    /**
+     * Add a fragment to a slot in the external content node. Fragments added to an array slot are appended to the
+     * array, while a fragment added to a non array slot replaces the existing value.
+     */
+    JsonComposer compose(final String slot, final boolean array, final Fragment fragment) {
+        Slot s = slots.computeIfAbsent(slot, k -> new Slot(array));
+        if (!s.array) {
+            s.fragments.clear();
+        }
+        s.fragments.add(fragment);
+        return this;
+    }
+
+    /**
+     * Write the composed page to a buffer.
+     *
+     * @param page the page JSON document
+     * @return the composed page encoded as UTF-8
+     */
+    byte[] write(final InputStream page) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonParser parser = mapper.getFactory().createParser(page);
+                JsonGenerator generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            contentWritten = false;
+            linksWritten = false;
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                generator.writeStartObject();
+                copyFields(parser, generator);
+                if (!contentWritten) {
+                    generator.writeFieldName(contentField);
+                    generator.writeStartObject();
+                    writeSlots(generator, Collections.emptySet());
+                    generator.writeEndObject();
+                }
+                generator.writeEndObject();
+            } else if (parser.currentToken() != null) {
+                copyValue(parser, generator);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void copyValue(final JsonParser parser, final JsonGenerator generator) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                generator.writeStartObject();
+                copyFields(parser, generator);
+                generator.writeEndObject();
+                break;
+            case START_ARRAY:
+                generator.writeStartArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    copyValue(parser, generator);
+                }
+                generator.writeEndArray();
+                break;
+            default:
+                generator.copyCurrentEvent(parser);
+        }
+    }
+
+    private void copyFields(final JsonParser parser, final JsonGenerator generator) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            generator.writeFieldName(name);
+            if (!contentWritten && token == JsonToken.START_OBJECT && contentField.equals(name)) {
+                contentWritten = true;
+                writeContent(parser, generator);
+            } else if (!linksWritten && token == JsonToken.START_OBJECT && name.equals(linksField)) {
+                linksWritten = true;
+                writeLinks(parser, generator);
+            } else {
+                copyValue(parser, generator);
+            }
+        }
+    }
+
+    private void writeContent(final JsonParser parser, final JsonGenerator generator) throws IOException {
+        Set<String> written = new HashSet<>();
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            Slot slot = slots.get(name);
+            generator.writeFieldName(name);
+            if (slot == null) {
+                copyValue(parser, generator);
+            } else {
+                written.add(name);
+                if (slot.array && token == JsonToken.START_ARRAY) {
+                    generator.writeStartArray();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        copyValue(parser, generator);
+                    }
+                    writeFragments(slot, generator);
+                    generator.writeEndArray();
+                } else {
+                    parser.skipChildren();
+                    writeSlot(slot, generator);
+                }
+            }
+        }
+        writeSlots(generator, written);
+        generator.writeEndObject();
+    }
+
+    private void writeLinks(final JsonParser parser, final JsonGenerator generator) throws IOException {
+        Set<String> written = new HashSet<>();
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (removedLinks.contains(name)) {
+                parser.skipChildren();
+            } else if (links.containsKey(name)) {
+                parser.skipChildren();
+                generator.writeFieldName(name);
+                mapper.writeTree(generator, links.get(name));
+                written.add(name);
+            } else {
+                generator.writeFieldName(name);
+                copyValue(parser, generator);
+            }
+        }
+        for (Map.Entry<String, JsonNode> link : links.entrySet()) {
+            if (!written.contains(link.getKey())) {
+                generator.writeFieldName(link.getKey());
+                mapper.writeTree(generator, link.getValue());
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeSlots(final JsonGenerator generator, final Set<String> written) throws IOException {
+        for (Map.Entry<String, Slot> slot : slots.entrySet()) {
+            if (!written.contains(slot.getKey())) {
+                generator.writeFieldName(slot.getKey());
+                writeSlot(slot.getValue(), generator);
+            }
+        }
+    }
+
+    private void writeSlot(final Slot slot, final JsonGenerator generator) throws IOException {
+        if (slot.array) {
+            generator.writeStartArray();
+            writeFragments(slot, generator);
+            generator.writeEndArray();
+        } else {
+            writeFragments(slot, generator);
+        }
+    }
+
+    private void writeFragments(final Slot slot, final JsonGenerator generator) throws IOException {
+        for (Fragment f : slot.fragments) {
+            f.write(generator);
+        }
+    }
+
+    /**
+     * Fragment of content to write into the page.
+     */
+    @FunctionalInterface
+    interface Fragment {
+
+        void write(JsonGenerator generator) throws IOException;
+
+    }
+
+    /**
+     * Slot in the external content node with the fragments to write.
+     */
+    private static class Slot {
+
+        final boolean array;
+        final List<Fragment> fragments = new ArrayList<>();
+
+        Slot(final boolean array) {
+            this.array = array;
+        }
+
+    }
+
+}
@@ -38,7 +38,6 @@ import javax.inject.Inject;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import dk.kontentsu.externalization.ExternalizationException;
 import dk.kontentsu.externalization.ExternalizationVisitor;
 import dk.kontentsu.jackson.ObjectMapperFactory;
@@ -50,7 +49,8 @@ import dk.kontentsu.spi.ContentProcessingMimeType;
 import dk.kontentsu.spi.ContentProcessingScoped;
 
 /**
- * Tree visitor for creating external JSON page content.
+ * Tree visitor for creating external JSON page content. The page is written using a streaming parser, where the
+ * content of the composed versions is written directly into the external content node of the page.
  *
  * @author Jens Borch Christiansen
  */
@@ -58,14 +58,17 @@ import dk.kontentsu.spi.ContentProcessingScoped;
 @ContentProcessingMimeType({"application/json"})
 public class JsonExternalizationVisitor extends ExternalizationVisitor {
 
-    private JsonNode pageNode;
-    private JsonNode contentNode;
+    private JsonNode compositionNode;
+    private JsonComposer composer;
 
     private final ObjectMapper mapper;
 
     @Inject
     private Content content;
 
+    @Inject
+    private FragmentCache cache;
+
     public JsonExternalizationVisitor() {
         this.mapper = ObjectMapperFactory.create();
     }
@@ -73,8 +76,8 @@ public class JsonExternalizationVisitor extends ExternalizationVisitor {
     @PostConstruct
     public void init() {
         try {
-            pageNode = mapper.readTree(content.getDataAsBinaryStream());
-            contentNode = findOrCreateExternalContentNode(pageNode);
+            compositionNode = JsonComposer.findPath(mapper, content.getDataAsBinaryStream(), JSON_COMPOSITION);
+            composer = new JsonComposer(mapper, JSON_CONTENT);
         } catch (IOException ex) {
             throw new ExternalizationException(getErrorMsg(), ex);
         }
@@ -82,8 +85,12 @@ public class JsonExternalizationVisitor extends ExternalizationVisitor {
 
     @Override
     public ExternalizationVisitor.Results getResults() {
-        Content result = new Content(pageNode.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
-        return new ExternalizationVisitor.Results(result);
+        try {
+            Content result = new Content(composer.write(content.getDataAsBinaryStream()), StandardCharsets.UTF_8);
+            return new ExternalizationVisitor.Results(result);
+        } catch (IOException ex) {
+            throw new ExternalizationException(getErrorMsg(), ex);
+        }
     }
 
     private String getErrorMsg() {
@@ -94,28 +101,17 @@ public class JsonExternalizationVisitor extends ExternalizationVisitor {
     public void visit(final TemporalReferenceTree.Node node) {
         try {
             if (!node.isRoot()) {
-                JsonNode newContentNode = mapper.readTree(node.getVersion().getContent().getDataAsBinaryStream());
-                CompositionNode parentNode = getContentNodeTypes(pageNode, node.getVersion());
-                addContent2ExternalContent(contentNode, newContentNode, parentNode);
+                JsonNode newContentNode = cache.get(node.getVersion());
+                CompositionNode parentNode = getContentNodeTypes(node.getVersion());
+                composer.compose(parentNode.name, parentNode.array, g -> mapper.writeTree(g, newContentNode));
             }
         } catch (IOException ex) {
             throw new ExternalizationException(getErrorMsg(), ex);
         }
     }
 
-    private void addContent2ExternalContent(final JsonNode externalContentNode,
-            final JsonNode newContentNode,
-            final CompositionNode parentNode) {
-        ObjectNode tmpContentNode = (ObjectNode) externalContentNode;
-        if (parentNode.array) {
-            tmpContentNode.withArray(parentNode.name).add(newContentNode);
-        } else {
-            tmpContentNode.set(parentNode.name, newContentNode);
-        }
-    }
-
-    private CompositionNode getContentNodeTypes(final JsonNode content, final Version version) {
-        Iterator<Map.Entry<String, JsonNode>> i = content.findPath(JSON_COMPOSITION).fields();
+    private CompositionNode getContentNodeTypes(final Version version) {
+        Iterator<Map.Entry<String, JsonNode>> i = compositionNode.fields();
         while (i.hasNext()) {
             Map.Entry<String, JsonNode> node = i.next();
             List<JsonNode> found = node.getValue().findParents(JSON_HREF);
@@ -128,14 +124,6 @@ public class JsonExternalizationVisitor extends ExternalizationVisitor {
         throw new ExternalizationException("Did not find composition with URI " + version.getItem().getUri().toString() + " in content");
     }
 
-    private JsonNode findOrCreateExternalContentNode(final JsonNode node) {
-        JsonNode externalContentNode = node.findPath(JSON_CONTENT);
-        if (externalContentNode.isMissingNode()) {
-            externalContentNode = node.with(JSON_CONTENT);
-        }
-        return externalContentNode;
-    }
-
     /**
      * Composition JSON node with a name.
      */
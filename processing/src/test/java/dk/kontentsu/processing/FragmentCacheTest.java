@@ -0,0 +1,72 @@
+package dk.kontentsu.processing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kontentsu.model.Content;
+import dk.kontentsu.model.Version;
+import org.junit.Test;
+
+/**
+ * Test for {@link FragmentCache}
+ *
+ * @author Jens Borch Christiansen
+ */
+public class FragmentCacheTest {
+
+    private static Version create(final String json) {
+        return Version.builder()
+                .content(new Content(json.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+                .from(ZonedDateTime.now())
+                .build();
+    }
+
+    @Test
+    public void testParsedOnce() throws Exception {
+        FragmentCache cache = new FragmentCache(1024);
+        Version version = create("{\"heading\": \"test\"}");
+        assertEquals("test", cache.get(version).get("heading").asText());
+        assertSame(cache.get(version), cache.get(version));
+        assertEquals(1, cache.size());
+        assertEquals(FragmentCache.estimate(cache.get(version)), cache.getBytes());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Version first = create("{\"id\": 1}");
+        Version second = create("{\"id\": 2}");
+        Version third = create("{\"id\": 3}");
+        FragmentCache cache = new FragmentCache(2 * FragmentCache.estimate(new FragmentCache(1024).get(first)));
+        cache.get(first);
+        cache.get(second);
+        cache.get(first);
+        cache.get(third);
+        assertEquals(2, cache.size());
+        assertSame(cache.get(first), cache.get(first));
+    }
+
+    @Test
+    public void testLargeFragmentNotCached() throws Exception {
+        FragmentCache cache = new FragmentCache(8);
+        Version version = create("{\"heading\": \"test\"}");
+        assertEquals("test", cache.get(version).get("heading").asText());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testEstimate() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        long small = FragmentCache.estimate(mapper.readTree("{\"text\": \"a\"}"));
+        long large = FragmentCache.estimate(mapper.readTree("{\"text\": \"" + String.join("", Collections.nCopies(1000, "a")) + "\"}"));
+        assertEquals(small + 2 * 999, large);
+        assertTrue(FragmentCache.estimate(mapper.readTree("[1, 2, 3]")) > FragmentCache.estimate(mapper.readTree("[1]")));
+    }
+
+}
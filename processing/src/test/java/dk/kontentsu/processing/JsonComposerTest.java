@@ -0,0 +1,67 @@
+package dk.kontentsu.processing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kontentsu.jackson.ObjectMapperFactory;
+import dk.kontentsu.test.ContentTestData;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link JsonComposer}
+ *
+ * @author Jens Borch Christiansen
+ */
+public class JsonComposerTest {
+
+    private ContentTestData data;
+    private ObjectMapper mapper;
+
+    @Before
+    public void setup() {
+        data = new ContentTestData(ContentTestData.Type.JSON);
+        mapper = ObjectMapperFactory.create();
+    }
+
+    @Test
+    public void testFindPath() throws Exception {
+        JsonNode composition = JsonComposer.findPath(mapper, new ByteArrayInputStream(data.getSimplePage()), JsonContent.JSON_COMPOSITION);
+        assertTrue(composition.has("articles"));
+        assertTrue(composition.has("contact"));
+        assertTrue(JsonComposer.findPath(mapper, new ByteArrayInputStream(data.getSimplePage()), "unknown").isMissingNode());
+    }
+
+    @Test
+    public void testCompose() throws Exception {
+        JsonNode contact = mapper.readTree(data.getContact());
+        JsonNode article = mapper.readTree(data.getArticle(1));
+        JsonComposer composer = new JsonComposer(mapper, JsonContent.JSON_CONTENT)
+                .compose("contact", false, g -> mapper.writeTree(g, contact))
+                .compose("articles", true, g -> mapper.writeTree(g, article));
+
+        byte[] result = composer.write(new ByteArrayInputStream(data.getSimplePage()));
+
+        assertEquals(mapper.readTree(data.getSimplePageResults(1)), mapper.readTree(result));
+    }
+
+    @Test
+    public void testLinks() throws Exception {
+        String page = "{\"_links\":{\"self\":{\"href\":\"/page/\"},\"composition\":{\"slot\":{\"href\":\"/item/\"}}}}";
+        JsonComposer composer = new JsonComposer(mapper, JsonContent.JSON_CONTENT)
+                .links("_links", Collections.singleton("composition"))
+                .link("slot1-link", mapper.readTree("{\"href\":\"/link/\"}"))
+                .compose("slot", false, g -> g.writeString("value"));
+
+        JsonNode result = mapper.readTree(composer.write(new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals(mapper.readTree("{\"_links\":{\"self\":{\"href\":\"/page/\"},\"slot1-link\":{\"href\":\"/link/\"}},\"content\":{\"slot\":\"value\"}}"), result);
+    }
+
+}
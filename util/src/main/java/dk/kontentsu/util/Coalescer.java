@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.util;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Merges requests submitted within a time window into a single batch. The first request of a batch opens the window,
+ * and when it closes the action is started once with all requests received in the window. All requests in the batch
+ * are completed with the result of that single run. The action is started on the scheduler thread, so it should hand
+ * the actual work to another executor and return a future for it.
+ *
+ * @author Jens Borch Christiansen
+ *
+ * @param <T> the type of the requests
+ * @param <R> the type of the result of running a batch
+ */
+public class Coalescer<T, R> {
+
+    private final ScheduledExecutorService scheduler;
+    private final long window;
+    private final TimeUnit unit;
+    private final Function<Set<T>, ? extends CompletionStage<R>> action;
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private Batch<T, R> batch;
+
+    public Coalescer(final ScheduledExecutorService scheduler, final long window, final TimeUnit unit, final Function<Set<T>, ? extends CompletionStage<R>> action) {
+        this.scheduler = scheduler;
+        this.window = window;
+        this.unit = unit;
+        this.action = action;
+    }
+
+    /**
+     * Add a request to the current batch, opening a new batch if none is pending.
+     *
+     * @param request the request to add
+     * @return future completed when the batch containing the request has been run
+     */
+    public synchronized CompletableFuture<R> submit(final T request) {
+        if (batch == null) {
+            Batch<T, R> b = new Batch<>();
+            batch = b;
+            scheduler.schedule(() -> run(b), window, unit);
+        } else {
+            coalesced.incrementAndGet();
+        }
+        batch.requests.add(request);
+        return batch.result.thenApply(Function.identity());
+    }
+
+    private void run(final Batch<T, R> b) {
+        synchronized (this) {
+            if (batch == b) {
+                batch = null;
+            }
+        }
+        try {
+            action.apply(Collections.unmodifiableSet(b.requests)).whenComplete((r, e) -> {
+                if (e == null) {
+                    b.result.complete(r);
+                } else {
+                    b.result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            b.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return number of requests merged into an already pending batch
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Requests merged into one run.
+     */
+    private static class Batch<T, R> {
+
+        final Set<T> requests = new LinkedHashSet<>();
+        final CompletableFuture<R> result = new CompletableFuture<>();
+
+    }
+
+}
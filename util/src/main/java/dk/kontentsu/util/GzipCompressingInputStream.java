@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Input stream compressing the data read from the underlying stream in the gzip format. This makes it possible to
+ * compress data while it is streamed to storage, without writing it to an output stream first.
+ */
+public class GzipCompressingInputStream extends FilterInputStream {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int INT_SIZE = 4;
+    private static final int BYTE_SIZE = 8;
+    private static final int BYTE_MASK = 0xff;
+
+    private final Deflater deflater;
+
+    public GzipCompressingInputStream(final InputStream in) {
+        this(in, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    }
+
+    private GzipCompressingInputStream(final InputStream in, final Deflater deflater) {
+        super(gzip(in, deflater));
+        this.deflater = deflater;
+    }
+
+    private static InputStream gzip(final InputStream in, final Deflater deflater) {
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        // The parts are created when read, as the trailer holds the checksum and size of all the data compressed
+        Iterator<Supplier<InputStream>> parts = Arrays.<Supplier<InputStream>>asList(
+                () -> new ByteArrayInputStream(HEADER),
+                () -> new DeflaterInputStream(checked, deflater),
+                () -> trailer(checked.getChecksum().getValue(), deflater.getBytesRead())).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return parts.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return parts.next().get();
+            }
+        });
+    }
+
+    private static InputStream trailer(final long crc, final long size) {
+        byte[] trailer = new byte[2 * INT_SIZE];
+        for (int i = 0; i < INT_SIZE; i++) {
+            trailer[i] = (byte) ((crc >> (i * BYTE_SIZE)) & BYTE_MASK);
+            trailer[INT_SIZE + i] = (byte) ((size >> (i * BYTE_SIZE)) & BYTE_MASK);
+        }
+        return new ByteArrayInputStream(trailer);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Jens Borch Christiansen.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.kontentsu.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executor running tasks in parallel using an underlying executor, while tasks submitted with the same key are run
+ * strictly in the order they were submitted.
+ *
+ * @author Jens Borch Christiansen
+ *
+ * @param <K> the type of key used for ordering tasks
+ */
+public class KeyedExecutor<K> {
+
+    private final Executor executor;
+    @SuppressWarnings("PMD.UseConcurrentHashMap")
+    private final Map<K, CompletableFuture<?>> tails = new HashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final long started = System.nanoTime();
+
+    public KeyedExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Submit a task. The task will not be started before all tasks previously submitted with the same key has
+     * completed - either normally or exceptionally.
+     *
+     * @param <T> the type of result returned by the task
+     * @param key the key of the task
+     * @param task the task to run
+     * @return future completed with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(final K key, final Supplier<T> task) {
+        submitted.incrementAndGet();
+        synchronized (tails) {
+            CompletableFuture<?> tail = tails.getOrDefault(key, CompletableFuture.completedFuture(null));
+            CompletableFuture<T> next = tail
+                    .handle((r, e) -> null)
+                    .thenApplyAsync(v -> run(task), executor);
+            tails.put(key, next);
+            next.whenComplete((r, e) -> remove(key, next));
+            return next;
+        }
+    }
+
+    private <T> T run(final Supplier<T> task) {
+        try {
+            return task.get();
+        } finally {
+            completed.incrementAndGet();
+        }
+    }
+
+    private void remove(final K key, final CompletableFuture<?> future) {
+        synchronized (tails) {
+            tails.remove(key, future);
+        }
+    }
+
+    /**
+     * @return number of tasks submitted but not yet completed
+     */
+    public long getQueueDepth() {
+        return submitted.get() - completed.get();
+    }
+
+    /**
+     * @return number of tasks completed
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return average number of tasks completed per second since the executor was created
+     */
+    public double getThroughput() {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        return elapsed == 0 ? 0 : completed.get() * 1000d / elapsed;
+    }
+
+}
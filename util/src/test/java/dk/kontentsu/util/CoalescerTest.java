@@ -0,0 +1,101 @@
+package dk.kontentsu.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link Coalescer}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class CoalescerTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<Set<String>> runs;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        runs = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testMergeRequests() throws Exception {
+        Coalescer<String, Integer> coalescer = new Coalescer<>(scheduler, 200, TimeUnit.MILLISECONDS, r -> {
+            runs.add(new HashSet<>(r));
+            return CompletableFuture.completedFuture(r.size());
+        });
+        CompletableFuture<Integer> f1 = coalescer.submit("a");
+        CompletableFuture<Integer> f2 = coalescer.submit("b");
+        CompletableFuture<Integer> f3 = coalescer.submit("a");
+
+        assertEquals(Integer.valueOf(2), f1.get(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(2), f2.get(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(2), f3.get(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.size());
+        assertEquals(2, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void testNewBatchAfterRun() throws Exception {
+        Coalescer<String, Integer> coalescer = new Coalescer<>(scheduler, 10, TimeUnit.MILLISECONDS, r -> {
+            runs.add(new HashSet<>(r));
+            return CompletableFuture.completedFuture(r.size());
+        });
+        coalescer.submit("a").get(5, TimeUnit.SECONDS);
+        coalescer.submit("a").get(5, TimeUnit.SECONDS);
+        assertEquals(2, runs.size());
+    }
+
+    @Test
+    public void testSchedulerNotBlocked() throws Exception {
+        CompletableFuture<Integer> pending = new CompletableFuture<>();
+        Coalescer<String, Integer> coalescer = new Coalescer<>(scheduler, 10, TimeUnit.MILLISECONDS, r -> {
+            runs.add(new HashSet<>(r));
+            return r.contains("a") ? pending : CompletableFuture.completedFuture(r.size());
+        });
+        CompletableFuture<Integer> f1 = coalescer.submit("a");
+        while (runs.isEmpty()) {
+            Thread.sleep(5);
+        }
+        assertEquals(Integer.valueOf(1), coalescer.submit("b").get(5, TimeUnit.SECONDS));
+        assertFalse(f1.isDone());
+        pending.complete(42);
+        assertEquals(Integer.valueOf(42), f1.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testException() throws Exception {
+        Coalescer<String, Integer> coalescer = new Coalescer<>(scheduler, 10, TimeUnit.MILLISECONDS, r -> {
+            throw new IllegalStateException("test");
+        });
+        try {
+            coalescer.submit("a").get(5, TimeUnit.SECONDS);
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
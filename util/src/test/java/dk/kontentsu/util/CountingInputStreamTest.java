@@ -0,0 +1,33 @@
+package dk.kontentsu.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class CountingInputStreamTest {
+
+    @Test
+    public void testCount() throws Exception {
+        byte[] data = new byte[10000];
+        try (CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(data))) {
+            assertEquals(0, in.read());
+            assertEquals(100, in.skip(100));
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Read all
+            }
+            assertEquals(data.length, in.getCount());
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        try (CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(new byte[0]))) {
+            assertEquals(-1, in.read());
+            assertEquals(0, in.getCount());
+        }
+    }
+
+}
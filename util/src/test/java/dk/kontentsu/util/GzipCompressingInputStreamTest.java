@@ -0,0 +1,64 @@
+package dk.kontentsu.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class GzipCompressingInputStreamTest {
+
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read = in.read(buffer);
+        while (read != -1) {
+            out.write(buffer, 0, read);
+            read = in.read(buffer);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] compress(final byte[] data) throws IOException {
+        try (InputStream in = new GzipCompressingInputStream(new ByteArrayInputStream(data))) {
+            return read(in);
+        }
+    }
+
+    private static byte[] roundTrip(final byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compress(data)))) {
+            return read(in);
+        }
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            json.append("{\"key\": \"value\"},");
+        }
+        byte[] data = json.toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(data, roundTrip(data));
+        assertTrue(compress(data).length < data.length / 10);
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+    }
+
+}
@@ -0,0 +1,88 @@
+package dk.kontentsu.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link KeyedExecutor}.
+ *
+ * @author Jens Borch Christiansen
+ */
+public class KeyedExecutorTest {
+
+    private ExecutorService pool;
+    private KeyedExecutor<String> executor;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+        executor = new KeyedExecutor<>(pool);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testSameKeyIsOrdered() throws Exception {
+        List<Integer> result = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            futures.add(executor.submit("key", () -> {
+                result.add(n);
+                return n;
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), result.get(i));
+        }
+        assertEquals(100, executor.getCompleted());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void testDifferentKeysRunInParallel() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        CompletableFuture<Boolean> f1 = executor.submit("key1", () -> await(latch));
+        CompletableFuture<Boolean> f2 = executor.submit("key2", () -> await(latch));
+        assertTrue(f1.get(10, TimeUnit.SECONDS));
+        assertTrue(f2.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testContinueAfterFailure() throws Exception {
+        CompletableFuture<Integer> failed = executor.submit("key", () -> {
+            throw new IllegalStateException("test");
+        });
+        CompletableFuture<Integer> next = executor.submit("key", () -> 42);
+        assertEquals(Integer.valueOf(42), next.get(10, TimeUnit.SECONDS));
+        assertTrue(failed.isCompletedExceptionally());
+    }
+
+    private static boolean await(final CountDownLatch latch) {
+        latch.countDown();
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}